@@ -0,0 +1,123 @@
+package org.kolokolov.fileloader.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.kolokolov.fileloader.service.DownloadService;
+import org.kolokolov.fileloader.service.FileLinker;
+import org.kolokolov.fileloader.service.ThreadService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time of downloading a web resource served from memory, so the result shows the cost of the copy loop
+ * and of making the repeated target files rather than the network. The resource is mapped on the set number of files,
+ * the first of them is written by the copy loop, either directly or through the set number of write threads, and the
+ * others are made by the {@link FileLinker} in the set mode. The small file path is turned off.
+ * The download messages are not printed while the benchmark runs.
+ *
+ * @author kolokolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({ "1048576", "16777216" })
+    private int resourceSize; // bytes
+
+    @Param({ "1", "4", "16" })
+    private int fileNumber;
+
+    @Param({ "hard", "copy" })
+    private String linkMode;
+
+    @Param({ "0", "2" })
+    private int writeThreads;
+
+    private byte[] content;
+    private URL url;
+    private File folder;
+    private List<File> files;
+    private DownloadService downloadService;
+    private PrintStream systemOut;
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new byte[resourceSize];
+        new Random(42).nextBytes(content);
+        url = new URL(null, "memory:/resource", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {
+                    }
+
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(content);
+                    }
+                };
+            }
+        });
+        folder = Files.createTempDirectory("download-benchmark").toFile();
+        files = new ArrayList<>();
+        for (int i = 0; i < fileNumber; i++) {
+            files.add(new File(folder, "file" + i));
+        }
+        ThreadService threadService = new ThreadService(1);
+        threadService.setWriteThreads(writeThreads);
+        downloadService = new DownloadService(threadService, 0, 1, new FileLinker(FileLinker.LinkMode.of(linkMode)));
+        downloadService.setSmallFileSize(0);
+
+        systemOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(systemOut);
+        downloadService.closeDownloadThreads();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFiles() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public boolean downloadFiles() {
+        return downloadService.downloadFiles(url, files);
+    }
+}
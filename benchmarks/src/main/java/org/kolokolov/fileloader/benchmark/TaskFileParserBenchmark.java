@@ -0,0 +1,107 @@
+package org.kolokolov.fileloader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.ParseException;
+import org.kolokolov.fileloader.service.TaskFileParser;
+import org.kolokolov.fileloader.service.TaskFileParser.TaskDescription;
+import org.kolokolov.fileloader.service.TaskStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the time of parsing a task file, both from the file and from the lines it has already been read into.
+ * Every tenth line repeats an earlier URL under a new file name, as task files with the same resource mapped on
+ * several files do.
+ *
+ * @author kolokolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskFileParserBenchmark {
+
+    @Param({ "10000", "1000000" })
+    private int lineNumber;
+
+    private final TaskFileParser parser = new TaskFileParser();
+    private List<String> lines;
+    private Set<TaskDescription> taskSet;
+    private File taskFile;
+
+    @Setup
+    public void createLines() throws IOException {
+        lines = new ArrayList<>(lineNumber);
+        for (int i = 0; i < lineNumber; i++) {
+            int resource = i % 10 == 9 ? i / 2 : i;
+            lines.add(String.format("http://host%d.example.com/files/resource-%d.bin file-%d.bin", resource % 64,
+                    resource, i));
+        }
+        taskSet = parser.linesToTaskSet(lines);
+        taskFile = File.createTempFile("tasks", ".txt");
+        taskFile.deleteOnExit();
+        Files.write(taskFile.toPath(), lines);
+    }
+
+    @TearDown
+    public void deleteTaskFile() {
+        taskFile.delete();
+    }
+
+    @Benchmark
+    public TaskStore parseTaskStore() throws IOException, ParseException {
+        return parser.parseTaskStore(taskFile);
+    }
+
+    @Benchmark
+    public Set<TaskDescription> parseTaskFile() throws IOException, ParseException {
+        return parser.parseTaskFile(taskFile);
+    }
+
+    @Benchmark
+    public Set<TaskDescription> linesToTaskSet() {
+        return parser.linesToTaskSet(lines);
+    }
+
+    @Benchmark
+    public void splitLine(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(parser.splitLine(line));
+        }
+    }
+
+    @Benchmark
+    public TaskStore fillTaskStore() {
+        TaskStore store = new TaskStore();
+        for (String line : lines) {
+            TaskDescription td = parser.splitLine(line);
+            store.add(td.getUrl(), td.getFile(), td.getChecksum(), td.getSize(), td.getMirrors());
+        }
+        return store;
+    }
+
+    @Benchmark
+    public boolean targetFileHasDuplicates() {
+        return parser.targetFileHasDuplicates(taskSet);
+    }
+}
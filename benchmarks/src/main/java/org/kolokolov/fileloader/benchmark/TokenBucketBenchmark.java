@@ -0,0 +1,116 @@
+package org.kolokolov.fileloader.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.kolokolov.fileloader.service.TokenBucket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of taking tokens from a shared token bucket by many contending threads. The speed limit is
+ * high enough for the threads never to wait, so the benchmark shows the cost of the bucket synchronization only. The
+ * lock-free {@link TokenBucket} is compared with a lock-based bucket built like the former one, which took a lock and
+ * woke up all the waiting threads on every read.
+ *
+ * @author kolokolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBucketBenchmark {
+
+    private static final int READ_SIZE = 1024; // bytes
+
+    private final TokenBucket tokenBucket = new TokenBucket(Integer.MAX_VALUE);
+    private final LockingTokenBucket lockingTokenBucket = new LockingTokenBucket(Integer.MAX_VALUE);
+
+    @Benchmark
+    @Threads(1)
+    public long tokenBucket_1() {
+        return tokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long tokenBucket_16() {
+        return tokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public long tokenBucket_128() {
+        return tokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(512)
+    public long tokenBucket_512() {
+        return tokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long lockingTokenBucket_1() {
+        return lockingTokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long lockingTokenBucket_16() {
+        return lockingTokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public long lockingTokenBucket_128() {
+        return lockingTokenBucket.reserve(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(512)
+    public long lockingTokenBucket_512() {
+        return lockingTokenBucket.reserve(READ_SIZE);
+    }
+
+    /**
+     * The lock-based token bucket used as the baseline. Its tokens are refilled lazily as well, so only the
+     * synchronization differs from {@link TokenBucket}.
+     */
+    private static class LockingTokenBucket {
+        private final long SPEED_LIMIT; // bytes/s
+
+        private final Lock bucketLock = new ReentrantLock();
+        private final Condition enoughTokens = bucketLock.newCondition();
+        private long refilledTime = System.nanoTime();
+
+        public LockingTokenBucket(int speedLimit) {
+            this.SPEED_LIMIT = speedLimit / 8;
+        }
+
+        public long reserve(long byteCount) {
+            bucketLock.lock();
+            try {
+                long now = System.nanoTime();
+                refilledTime = Math.max(refilledTime, now) + byteCount * 1_000_000_000L / SPEED_LIMIT;
+                enoughTokens.signalAll();
+                return Math.max(refilledTime - now, 0);
+            } finally {
+                bucketLock.unlock();
+            }
+        }
+    }
+}
@@ -4,14 +4,17 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.function.Function;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -21,10 +24,31 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
+import org.kolokolov.fileloader.service.BufferPool;
+import org.kolokolov.fileloader.service.ConcurrencyController;
+import org.kolokolov.fileloader.service.ContentCache;
+import org.kolokolov.fileloader.service.CoordinatorClient;
+import org.kolokolov.fileloader.service.DownloadDaemon;
+import org.kolokolov.fileloader.service.DownloadMetrics;
 import org.kolokolov.fileloader.service.DownloadService;
+import org.kolokolov.fileloader.service.DownloadWorker;
+import org.kolokolov.fileloader.service.DownloadService.Compression;
+import org.kolokolov.fileloader.service.FileChecksum;
+import org.kolokolov.fileloader.service.FileLinker;
+import org.kolokolov.fileloader.service.FsyncPolicy;
+import org.kolokolov.fileloader.service.FileLinker.LinkMode;
+import org.kolokolov.fileloader.service.HostConnections;
+import org.kolokolov.fileloader.service.HostScheduler;
+import org.kolokolov.fileloader.service.RemoteResource;
+import org.kolokolov.fileloader.service.RemoteTokenBucket;
+import org.kolokolov.fileloader.service.SpeedLimits;
 import org.kolokolov.fileloader.service.TaskFileParser;
-import org.kolokolov.fileloader.service.TaskFileParser.TaskDescription;
+import org.kolokolov.fileloader.service.TaskOrder;
+import org.kolokolov.fileloader.service.TaskStore;
 import org.kolokolov.fileloader.service.ThreadService;
+import org.kolokolov.fileloader.service.ThreadService.Engine;
+import org.kolokolov.fileloader.service.WorkCoordinator;
+import org.kolokolov.fileloader.service.WorkItem;
 
 /**
  * The main application class with main method
@@ -33,36 +57,138 @@ import org.kolokolov.fileloader.service.ThreadService;
  */
 public class App {
 
+    private final int SIZE_PROBE_THREADS = 16;
+
     private static String taskFileName;
     private static int threadsNumber;
-    private static int speedLimit;
+    private static boolean autoConcurrency;
+    private static int minConcurrency = 1;
+    private static int maxConcurrency = 64;
+    private static Engine engine = Engine.POOL;
+    private static long speedLimit;
+    private static long hostSpeedLimit;
+    private static Map<String, Long> hostSpeedLimits = new HashMap<>();
+    private static long taskSpeedLimit;
+    private static int segments;
+    private static int hostConnectionsNumber;
+    private static LinkMode linkMode = LinkMode.AUTO;
     private static String outputFolderName = "download";
+    private static boolean streaming;
+    private static boolean hedging;
+    private static boolean preallocation;
+    private static boolean daemon;
+    private static String spoolFolderName;
+    private static int daemonPort;
+    private static int coordinatorPort;
+    private static String coordinatorBindAddress;
+    private static String coordinatorAddress;
+    private static CoordinatorClient coordinatorClient;
+    private static TaskOrder taskOrder = TaskOrder.NONE;
+    private static FsyncPolicy fsyncPolicy = FsyncPolicy.ON_COMPLETE;
+    private static Compression compression = Compression.NONE;
+    private static int queueSize = 1000;
+    private static int retries;
+    private static int maxFailures;
+    private static long bufferMemory = 64 * 1024 * 1024;
+    private static int smallFileSize = 64 * 1024;
+    private static int writeThreads = -1;
+    private static String cacheFolderName;
+    private static long cacheSize = 1024L * 1024 * 1024;
+    private static int progressInterval;
+    private static String metricsFileName;
 
     private int tasksTotal;
     private int downloaded;
     private long downloadedSize;
     private int failed;
+    private int skipped;
+    private volatile boolean aborted;
+    private long startTime;
     private long elapsedTime;
 
     private TaskFileParser parser;
+    private ThreadService threadService;
     private DownloadService downloadService;
+    private HostScheduler hostScheduler;
+    private FileLinker fileLinker;
+    private DownloadMetrics metrics;
+    private Semaphore queuePermits = new Semaphore(queueSize);
 
     public App() {
         this.parser = new TaskFileParser();
-        this.downloadService = new DownloadService(new ThreadService(threadsNumber), speedLimit);
+        SpeedLimits speedLimits;
+        if (coordinatorClient != null && coordinatorClient.getSpeedLimit() > 0) {
+            speedLimits = new SpeedLimits(new RemoteTokenBucket(coordinatorClient), hostSpeedLimit, hostSpeedLimits,
+                    taskSpeedLimit);
+        } else {
+            speedLimits = new SpeedLimits(speedLimit, hostSpeedLimit, hostSpeedLimits, taskSpeedLimit);
+        }
+        this.threadService = new ThreadService(threadsNumber, engine);
+        if (writeThreads >= 0) {
+            this.threadService.setWriteThreads(writeThreads);
+        }
+        HostConnections hostConnections = new HostConnections(hostConnectionsNumber);
+        this.fileLinker = new FileLinker(linkMode);
+        this.downloadService = new DownloadService(threadService, speedLimits, segments, fileLinker);
+        this.downloadService.setHostConnections(hostConnections);
+        this.downloadService.setBufferPool(new BufferPool(bufferMemory));
+        this.metrics = new DownloadMetrics();
+        this.metrics.register();
+        this.downloadService.setMetrics(metrics);
+        this.downloadService.setFsyncPolicy(fsyncPolicy);
+        this.downloadService.setCompression(compression);
+        this.downloadService.setHedging(hedging);
+        this.downloadService.setPreallocation(preallocation);
+        this.downloadService.setSmallFileSize(smallFileSize);
+        if (cacheFolderName != null) {
+            try {
+                ContentCache contentCache = new ContentCache(new File(cacheFolderName), cacheSize, fileLinker);
+                this.downloadService.setContentCache(contentCache);
+            } catch (IOException ioe) {
+                System.err.printf("Can not use cache folder '%s': %s%n", cacheFolderName, ioe.getMessage());
+                System.exit(1);
+            }
+        }
+        this.hostScheduler = new HostScheduler(threadService, downloadService, hostConnections);
+        if (progressInterval > 0) {
+            threadService.startNewDaemon(this::printProgress);
+        }
+        if (autoConcurrency) {
+            threadService.startNewDaemon(
+                    new ConcurrencyController(threadService, metrics, minConcurrency, maxConcurrency));
+        }
     }
 
     public static void main(String[] args) {
 
         App.parseArgs(args);
+        if (coordinatorAddress != null) {
+            connectToCoordinator();
+        }
 
         App app = new App();
         app.printInitReport();
-        Set<TaskDescription> taskDescriptions = app.getTaskDescriptions(taskFileName);
-        Map<URL, Task> taskMap = app.createTasks(taskDescriptions);
-        Map<Task, Future<Boolean>> downloadReports = app.startTasks(taskMap);
-        app.processDownloadReports(downloadReports);
+        if (daemon) {
+            app.runDaemon();
+            return;
+        }
+        if (coordinatorPort > 0) {
+            app.runCoordinator();
+        } else if (coordinatorClient != null) {
+            app.runWorker();
+        } else if (streaming) {
+            app.streamTasks(taskFileName);
+        } else {
+            TaskStore store = app.loadTasks(taskFileName);
+            int[] order = app.orderTasks(store);
+            app.startTasks(store, order);
+            app.processDownloadReports();
+        }
         app.printReport();
+        app.writeMetricsSummary();
+        if (app.aborted) {
+            System.exit(1);
+        }
     }
 
     public void printInitReport() {
@@ -71,12 +197,31 @@ public class App {
         } else {
             System.out.println("No speed limit");
         }
+        if (hostSpeedLimit > 0) {
+            System.out.printf("Host download speed limit = %.03f kbit/s%n", (double) hostSpeedLimit / 1024);
+        }
+        hostSpeedLimits.forEach((host, limit) -> System.out.printf("Host %s download speed limit = %.03f kbit/s%n",
+                host, (double) limit / 1024));
+        if (taskSpeedLimit > 0) {
+            System.out.printf("File download speed limit = %.03f kbit/s%n", (double) taskSpeedLimit / 1024);
+        }
 
-        if (threadsNumber > 0) {
+        if (autoConcurrency) {
+            System.out.printf("Concurrent downloads are tuned between %d and %d%n", minConcurrency, maxConcurrency);
+        } else if (threadsNumber > 0 && engine == Engine.VIRTUAL) {
+            System.out.printf("Concurrent downloads on virtual threads: %d%n", threadsNumber);
+        } else if (threadsNumber > 0) {
             System.out.printf("Download threads: %d%n", threadsNumber);
         } else {
             System.out.println("Download threads number was not specified");
         }
+
+        if (segments > 1) {
+            System.out.printf("Connections per file: %d%n", segments);
+        }
+        if (hostConnectionsNumber > 0) {
+            System.out.printf("Connections per host: %d%n", hostConnectionsNumber);
+        }
     }
 
     /**
@@ -87,19 +232,109 @@ public class App {
     public static void parseArgs(String[] args) {
 
         Options options = new Options();
-        Option taskFile = new Option("f", "file", true, "task file name");
-        taskFile.setRequired(true);
+        Option taskFile = new Option("f", "file", true, "task file name, not used in daemon mode");
         options.addOption(taskFile);
 
-        Option threads = new Option("n", true, "number of downloading threads");
+        Option threads = new Option("n", true, "number of downloading threads or auto[:min-max]");
         options.addOption(threads);
 
+        Option engineOption = new Option(null, "engine", true, "download engine: pool or virtual");
+        options.addOption(engineOption);
+
         Option output = new Option("o", "output", true, "output folder");
         options.addOption(output);
 
         Option limit = new Option("l", "limit", true, "speed limit");
         options.addOption(limit);
 
+        Option hostLimit = new Option(null, "host-limit", true,
+                "speed limit of every host or comma separated host=limit pairs");
+        options.addOption(hostLimit);
+
+        Option taskLimit = new Option(null, "task-limit", true, "speed limit of every file");
+        options.addOption(taskLimit);
+
+        Option connections = new Option("s", "segments", true, "number of connections per file");
+        options.addOption(connections);
+
+        Option hostConnections = new Option(null, "host-connections", true, "maximum number of connections per host");
+        options.addOption(hostConnections);
+
+        Option buffers = new Option(null, "buffer-memory", true, "maximum memory used by copy buffers");
+        options.addOption(buffers);
+
+        Option writers = new Option(null, "writers", true, "number of threads writing the downloaded data");
+        options.addOption(writers);
+
+        Option smallFiles = new Option(null, "small-files", true, "maximum size of the files downloaded into memory");
+        options.addOption(smallFiles);
+
+        Option cache = new Option(null, "cache-dir", true, "folder of the cached files");
+        options.addOption(cache);
+
+        Option cacheSizeOption = new Option(null, "cache-size", true, "maximum size of the cached files");
+        options.addOption(cacheSizeOption);
+
+        Option progress = new Option(null, "progress", true, "interval of printing the progress line in seconds");
+        options.addOption(progress);
+
+        Option metricsFile = new Option(null, "metrics-file", true, "file the JSON summary is written to at exit");
+        options.addOption(metricsFile);
+
+        Option stream = new Option(null, "stream", false, "start downloading while the task file is being read");
+        options.addOption(stream);
+
+        Option queue = new Option(null, "queue", true, "maximum number of scheduled downloads");
+        options.addOption(queue);
+
+        Option retriesOption = new Option(null, "retries", true, "number of times a failed download is repeated");
+        options.addOption(retriesOption);
+
+        Option maxFailuresOption = new Option(null, "max-failures", true,
+                "number of failed tasks stopping the run");
+        options.addOption(maxFailuresOption);
+
+        Option fsync = new Option(null, "fsync", true, "syncing files to disk: none, complete or every given size");
+        options.addOption(fsync);
+
+        Option compressionOption = new Option(null, "compression", true,
+                "request compressed data and decode it or keep it compressed: decode or keep");
+        options.addOption(compressionOption);
+
+        Option order = new Option(null, "order", true, "order of starting downloads: none, lpt or spt");
+        options.addOption(order);
+
+        Option daemonOption = new Option(null, "daemon", false,
+                "keep running and accept task files from the spool folder and the local endpoint");
+        options.addOption(daemonOption);
+
+        Option spool = new Option(null, "spool", true, "folder watched for task files in daemon mode");
+        options.addOption(spool);
+
+        Option port = new Option(null, "port", true, "start the local job endpoint at the port in daemon mode");
+        options.addOption(port);
+
+        Option coordinator = new Option(null, "coordinator", true,
+                "share the tasks with the workers connecting to the given port instead of downloading them");
+        options.addOption(coordinator);
+
+        Option bind = new Option(null, "bind", true, "address the coordinator listens to, loopback by default");
+        options.addOption(bind);
+
+        Option worker = new Option(null, "worker", true, "download the tasks of the coordinator at the given host:port");
+        options.addOption(worker);
+
+        Option hedge = new Option(null, "hedge", false,
+                "request the tail of a straggling segment from another connection");
+        options.addOption(hedge);
+
+        Option preallocate = new Option(null, "preallocate", false,
+                "allocate the space of a file of a known length by writing zeros before downloading");
+        options.addOption(preallocate);
+
+        Option link = new Option(null, "link", true, "way of making repeated files: auto, hard, reflink or copy");
+        options.addOption(link);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmdLine = null;
@@ -112,12 +347,45 @@ public class App {
         }
 
         taskFileName = cmdLine.getOptionValue("file");
+        daemon = cmdLine.hasOption("daemon");
+        coordinatorAddress = cmdLine.getOptionValue("worker");
+        coordinatorBindAddress = cmdLine.getOptionValue("bind");
+        String sCoordinatorPort = cmdLine.getOptionValue("coordinator");
+        if (sCoordinatorPort != null) {
+            coordinatorPort = Integer.parseInt(sCoordinatorPort);
+        }
+        if (taskFileName == null && !daemon && coordinatorAddress == null) {
+            formatter.printHelp("java -jar file-loader.jar", options);
+            System.exit(1);
+        }
+        spoolFolderName = cmdLine.getOptionValue("spool");
+        String sDaemonPort = cmdLine.getOptionValue("port");
+        if (sDaemonPort != null) {
+            daemonPort = Integer.parseInt(sDaemonPort);
+        }
 
         String sThreadsNumber = cmdLine.getOptionValue("n");
-        if (sThreadsNumber != null) {
+        if (sThreadsNumber != null && sThreadsNumber.startsWith("auto")) {
+            autoConcurrency = true;
+            String[] bounds = sThreadsNumber.substring("auto".length()).replace(":", "").split("-");
+            if (bounds.length == 2) {
+                minConcurrency = Integer.parseInt(bounds[0]);
+                maxConcurrency = Integer.parseInt(bounds[1]);
+            }
+        } else if (sThreadsNumber != null) {
             threadsNumber = Integer.parseInt(sThreadsNumber);
         }
 
+        String sEngine = cmdLine.getOptionValue("engine");
+        if (sEngine != null) {
+            try {
+                engine = Engine.of(sEngine);
+            } catch (IllegalArgumentException iae) {
+                formatter.printHelp("java -jar file-loader.jar", options);
+                System.exit(1);
+            }
+        }
+
         String outputFolder = cmdLine.getOptionValue("o");
         if (outputFolder != null) {
             outputFolderName = outputFolder;
@@ -125,15 +393,145 @@ public class App {
 
         String sSpeedLimit = cmdLine.getOptionValue("l");
         if (sSpeedLimit != null) {
-            int factor = 1;
-            if (sSpeedLimit.endsWith("k")) {
-                factor = 1024;
+            speedLimit = parseAmount(sSpeedLimit);
+        }
+
+        String sHostSpeedLimit = cmdLine.getOptionValue("host-limit");
+        if (sHostSpeedLimit != null) {
+            for (String hostLimitValue : sHostSpeedLimit.split(",")) {
+                String[] pair = hostLimitValue.split("=");
+                if (pair.length == 2) {
+                    hostSpeedLimits.put(pair[0].trim(), parseAmount(pair[1].trim()));
+                } else {
+                    hostSpeedLimit = parseAmount(hostLimitValue.trim());
+                }
+            }
+        }
+
+        String sTaskSpeedLimit = cmdLine.getOptionValue("task-limit");
+        if (sTaskSpeedLimit != null) {
+            taskSpeedLimit = parseAmount(sTaskSpeedLimit);
+        }
+
+        String sSegments = cmdLine.getOptionValue("s");
+        if (sSegments != null) {
+            segments = Integer.parseInt(sSegments);
+        }
+
+        String sHostConnections = cmdLine.getOptionValue("host-connections");
+        if (sHostConnections != null) {
+            hostConnectionsNumber = Integer.parseInt(sHostConnections);
+        }
+
+        String sBufferMemory = cmdLine.getOptionValue("buffer-memory");
+        if (sBufferMemory != null) {
+            bufferMemory = parseAmount(sBufferMemory);
+        }
+
+        String sWriteThreads = cmdLine.getOptionValue("writers");
+        if (sWriteThreads != null) {
+            writeThreads = Integer.parseInt(sWriteThreads);
+        }
+
+        String sSmallFileSize = cmdLine.getOptionValue("small-files");
+        if (sSmallFileSize != null) {
+            smallFileSize = (int) Math.min(parseAmount(sSmallFileSize), BufferPool.MAX_BUFFER_SIZE);
+        }
+
+        cacheFolderName = cmdLine.getOptionValue("cache-dir");
+
+        String sCacheSize = cmdLine.getOptionValue("cache-size");
+        if (sCacheSize != null) {
+            cacheSize = parseAmount(sCacheSize);
+        }
+
+        String sProgressInterval = cmdLine.getOptionValue("progress");
+        if (sProgressInterval != null) {
+            progressInterval = Integer.parseInt(sProgressInterval);
+        }
+
+        metricsFileName = cmdLine.getOptionValue("metrics-file");
+
+        streaming = cmdLine.hasOption("stream");
+        hedging = cmdLine.hasOption("hedge");
+        preallocation = cmdLine.hasOption("preallocate");
+
+        String sQueueSize = cmdLine.getOptionValue("queue");
+        if (sQueueSize != null && Integer.parseInt(sQueueSize) > 0) {
+            queueSize = Integer.parseInt(sQueueSize);
+        }
+
+        String sRetries = cmdLine.getOptionValue("retries");
+        if (sRetries != null) {
+            retries = Integer.parseInt(sRetries);
+        }
+
+        String sMaxFailures = cmdLine.getOptionValue("max-failures");
+        if (sMaxFailures != null) {
+            maxFailures = Integer.parseInt(sMaxFailures);
+        }
+
+        String sFsyncPolicy = cmdLine.getOptionValue("fsync");
+        if ("none".equals(sFsyncPolicy)) {
+            fsyncPolicy = FsyncPolicy.NONE;
+        } else if (sFsyncPolicy != null && !"complete".equals(sFsyncPolicy)) {
+            try {
+                fsyncPolicy = FsyncPolicy.every(parseAmount(sFsyncPolicy));
+            } catch (IllegalArgumentException iae) {
+                formatter.printHelp("java -jar file-loader.jar", options);
+                System.exit(1);
             }
-            if (sSpeedLimit.endsWith("m")) {
-                factor = 1024 * 1024;
+        }
+
+        String sCompression = cmdLine.getOptionValue("compression");
+        if (sCompression != null) {
+            try {
+                compression = Compression.of(sCompression);
+            } catch (IllegalArgumentException iae) {
+                formatter.printHelp("java -jar file-loader.jar", options);
+                System.exit(1);
             }
-            speedLimit = Integer.parseInt(sSpeedLimit.split("\\D")[0]) * factor;
         }
+
+        String sTaskOrder = cmdLine.getOptionValue("order");
+        if (sTaskOrder != null) {
+            try {
+                taskOrder = TaskOrder.of(sTaskOrder);
+            } catch (IllegalArgumentException iae) {
+                formatter.printHelp("java -jar file-loader.jar", options);
+                System.exit(1);
+            }
+        }
+
+        String sLinkMode = cmdLine.getOptionValue("link");
+        if (sLinkMode != null) {
+            try {
+                linkMode = LinkMode.of(sLinkMode);
+            } catch (IllegalArgumentException iae) {
+                formatter.printHelp("java -jar file-loader.jar", options);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Parses a speed limit or size value consisting of a number and an optional 'k', 'm' or 'g' suffix.
+     * 
+     * @param sAmount a speed limit or size value
+     * @return speed limit in bits/s or size in bytes
+     */
+    private static long parseAmount(String sAmount) {
+        long factor = 1;
+        if (sAmount.endsWith("k")) {
+            factor = 1024;
+        }
+        if (sAmount.endsWith("m")) {
+            factor = 1024 * 1024;
+        }
+        if (sAmount.endsWith("g")) {
+            factor = 1024 * 1024 * 1024;
+        }
+        return Long.parseLong(sAmount.split("\\D")[0]) * factor;
     }
 
     /**
@@ -155,97 +553,450 @@ public class App {
     }
     
     /**
-     * Uses the object of {@link TaskFileParser} class to parse a task file
-     * and get a set of {@link TaskDescription} objects.
+     * Uses the object of {@link TaskFileParser} class to parse a task file into a compact {@link TaskStore}, in which
+     * the lines mapping the same URL are merged into a single task in order to avoid multiple downloading of the same
+     * file.
      * 
      * @param taskFileName a name of the task file
-     * @return a set of an objects of {@link TaskDescription} type
+     * @return the store holding the tasks of the file
      */
-    public Set<TaskDescription> getTaskDescriptions(String taskFileName) {
+    public TaskStore loadTasks(String taskFileName) {
         File taskFile = new File(taskFileName);
         System.out.printf("Processing task file '%s'%n", taskFile.getName());
-        Set<TaskDescription> taskDescriptions = null;
+        TaskStore store = null;
         try {
-            taskDescriptions = parser.parseTaskFile(taskFile);
+            store = parser.parseTaskStore(taskFile);
         } catch (IOException | ParseException e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
-        return taskDescriptions;
+        tasksTotal = store.getTaskCount();
+        System.out.printf("Total tasks: %d%n", tasksTotal);
+        return store;
     }
 
     /**
-     * Creates instances of {@link Task} class based on task descriptions and stores them into a Map.
-     * If several task descriptions include the same URL, then files from such task descriptions will be added to the
-     * same task instance in order to avoid multiple downloading of the same file.
+     * Converts the mirror URLs of a task. A malformed mirror URL is reported and skipped, so the task is still
+     * downloaded from its other sources.
      * 
-     * @param taskDescriptions a set of an objects of {@link TaskDescription} type
-     * @return a map of URLs mapped on the appropriate tasks
+     * @param url the URL of the task
+     * @param mirrorNames the mirror URLs of the task
+     * @return a list of the mirror URLs
      */
-    public Map<URL, Task> createTasks(Set<TaskDescription> taskDescriptions) {
+    private List<URL> mirrorsOf(String url, List<String> mirrorNames) {
+        List<URL> mirrors = new ArrayList<>();
+        for (String mirror : mirrorNames) {
+            try {
+                mirrors.add(new URL(mirror));
+            } catch (IOException ioe) {
+                System.out.printf("Error processing mirror '%s' of '%s'%n", mirror, url);
+                System.out.printf("Error message: %s%n", ioe.getMessage());
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * Sorts the tasks of the store in the set {@link TaskOrder}. The sizes of the tasks that have no size hint in the
+     * task file are requested by HEAD requests sent concurrently before the tasks are started.
+     * 
+     * @param store the store holding the tasks
+     * @return the numbers of the tasks in the order of starting
+     */
+    public int[] orderTasks(TaskStore store) {
+        int[] order = IntStream.range(0, store.getTaskCount()).toArray();
+        if (taskOrder == TaskOrder.NONE) {
+            return order;
+        }
+        int[] unknownSizeTasks = IntStream.of(order).filter(task -> store.getSize(task) < 0).toArray();
+        if (unknownSizeTasks.length > 0) {
+            System.out.printf("Requesting sizes of %d files%n", unknownSizeTasks.length);
+            ExecutorService probeThreadPool = Executors.newFixedThreadPool(SIZE_PROBE_THREADS);
+            long[] sizes = new long[unknownSizeTasks.length];
+            CompletableFuture.allOf(IntStream.range(0, unknownSizeTasks.length)
+                    .mapToObj(i -> CompletableFuture.runAsync(() -> sizes[i] = probeSize(store, unknownSizeTasks[i]),
+                            probeThreadPool))
+                    .toArray(CompletableFuture[]::new)).join();
+            probeThreadPool.shutdown();
+            for (int i = 0; i < unknownSizeTasks.length; i++) {
+                store.setSize(unknownSizeTasks[i], sizes[i]);
+            }
+        }
+        List<Integer> sorted = taskOrder.sort(IntStream.of(order).boxed().collect(Collectors.toList()),
+                store::getSize);
+        return sorted.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private long probeSize(TaskStore store, int task) {
+        try {
+            return RemoteResource.probe(new URL(store.getUrl(task))).getContentLength();
+        } catch (IOException ioe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts the tasks of the store in the passed order using {@link HostScheduler}. No more than the set number of
+     * downloads can be scheduled and not completed at once, so the objects of a task are made only when it is
+     * started and are dropped as soon as it has been completed.
+     * 
+     * @param store the store holding the tasks
+     * @param order the numbers of the tasks in the order of starting
+     */
+    public void startTasks(TaskStore store, int[] order) {
         File outputFolder = createOutputFolder();
-        Map<URL, Task> taskMap = new HashMap<>();
-        taskDescriptions.parallelStream().forEach(td -> {
-            File file = new File(outputFolder, td.getFile());
+        System.out.printf("Output folder: '%s'%n", outputFolder.getAbsolutePath());
+        startTime = System.nanoTime();
+        for (int taskNumber : order) {
+            String urlName = store.getUrl(taskNumber);
+            List<File> files = new ArrayList<>();
+            store.getFiles(taskNumber).forEach(name -> files.add(new File(outputFolder, name)));
+            URL url;
             try {
-                System.out.printf("Processing URL: '%s'%n", td.getUrl());
-                URL url = new URL(td.getUrl());
-                Task task = new Task(url, file);
-                taskMap.merge(url, task, Task::combainTasks);
+                url = new URL(urlName);
             } catch (IOException ioe) {
-                System.out.printf("Error processing task description '%s : %s'%n", td.getUrl(), td.getFile());
+                System.out.printf("Error processing task description '%s : %s'%n", urlName, files.get(0).getName());
                 System.out.printf("Error message: %s%n", ioe.getMessage());
+                countResult(null, false);
+                continue;
+            }
+            Task task = new Task(url, files, store.getChecksum(taskNumber));
+            task.mirrors.addAll(mirrorsOf(urlName, store.getMirrors(taskNumber)));
+            queuePermits.acquireUninterruptibly();
+            if (aborted) {
+                queuePermits.release();
+                skipTask();
+                continue;
+            }
+            download(task).whenComplete((succeeded, error) -> {
+                try {
+                    if (error != null) {
+                        skipTask();
+                    } else {
+                        countResult(task, succeeded);
+                    }
+                } finally {
+                    queuePermits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Schedules the download of a task. A failed download is scheduled again ahead of the pending downloads as soon as
+     * it has failed, until the set number of retries is over or the run has been aborted.
+     * 
+     * @param task a task to be downloaded
+     * @return the future completed with true when the task has succeeded and with false when it has finally failed,
+     *         or cancelled if the task has not been started because the run has been aborted
+     */
+    private CompletableFuture<Boolean> download(Task task) {
+        CompletableFuture<Boolean> report = new CompletableFuture<>();
+        download(task, 0, report);
+        return report;
+    }
+
+    private void download(Task task, int attempt, CompletableFuture<Boolean> report) {
+        CompletableFuture<Boolean> scheduled = attempt == 0
+                ? hostScheduler.schedule(task.getUrl(), task.getFiles(), task.getChecksum(), task.getMirrors())
+                : hostScheduler.scheduleFirst(task.getUrl(), task.getFiles(), task.getChecksum(), task.getMirrors());
+        scheduled.whenComplete((result, error) -> {
+            if (error instanceof CancellationException) {
+                if (attempt == 0) {
+                    report.cancel(false);
+                } else {
+                    report.complete(false); // the task has been started and has failed
+                }
+                return;
+            }
+            if (error != null) {
+                System.out.printf("Error downloading from %s%n", task.getUrl());
+                System.out.printf("Error message: %s%n", error.getMessage());
+            }
+            boolean succeeded = result != null && result;
+            if (!succeeded && attempt < retries && !aborted) {
+                System.out.printf("Retrying %s (%d of %d)%n", task.getUrl(), attempt + 1, retries);
+                download(task, attempt + 1, report);
+            } else {
+                report.complete(succeeded);
             }
         });
-        tasksTotal = taskMap.size();
-        System.out.printf("Total tasks: %d%n", tasksTotal);
-        System.out.printf("Output folder: '%s'%n", outputFolder.getAbsolutePath());
-        return taskMap;
     }
 
     /**
-     * Process the map with task stored in. 
-     * Tries to start every task using {@link DownloadService} and then stores the
-     * results of tasks performing to reports map.
+     * Reads the task file line by line and schedules the download of every new URL as soon as its line has been read.
+     * No more than the set number of downloads can be scheduled and not completed at once, so reading the file is
+     * paused while the queue is full. A file mapped on an URL that has already been scheduled is made out of the
+     * downloaded file by {@link FileLinker} after the download has been completed.
      * 
-     * @param taskMap a map of URLs mapped on the appropriate tasks
-     * @return a map of tasks mapped on their {@link Future} report
+     * @param taskFileName a name of the task file
      */
-    public Map<Task, Future<Boolean>> startTasks(Map<URL, Task> taskMap) {
-        return taskMap.values().stream().collect(Collectors.toMap(Function.identity(),
-                task -> downloadService.downloadFilesInNewThread(task.getUrl(), task.getFiles())));
+    public void streamTasks(String taskFileName) {
+        File outputFolder = createOutputFolder();
+        File taskFile = new File(taskFileName);
+        System.out.printf("Processing task file '%s'%n", taskFile.getName());
+        System.out.printf("Output folder: '%s'%n", outputFolder.getAbsolutePath());
+        startTime = System.nanoTime();
+        Map<URL, Task> taskMap = new HashMap<>();
+        try {
+            parser.streamTaskFile(taskFile, td -> {
+                File file = new File(outputFolder, td.getFile());
+                URL url;
+                try {
+                    url = new URL(td.getUrl());
+                } catch (IOException ioe) {
+                    System.out.printf("Error processing task description '%s : %s'%n", td.getUrl(), td.getFile());
+                    System.out.printf("Error message: %s%n", ioe.getMessage());
+                    return;
+                }
+                Task task = taskMap.get(url);
+                if (task != null) {
+                    if (!task.addLateFile(file) && task.isSucceeded()) {
+                        linkLateFiles(task, Collections.singletonList(file));
+                    }
+                    return;
+                }
+                Task newTask = new Task(url, file, td.getChecksum());
+                newTask.mirrors.addAll(mirrorsOf(td.getUrl(), td.getMirrors()));
+                taskMap.put(url, newTask);
+                tasksTotal++;
+                queuePermits.acquireUninterruptibly();
+                if (aborted) {
+                    queuePermits.release();
+                    skipTask();
+                    return;
+                }
+                download(newTask).whenComplete((succeeded, error) -> {
+                    try {
+                        if (error != null) {
+                            skipTask();
+                            newTask.complete(false);
+                            return;
+                        }
+                        countResult(newTask, succeeded);
+                        List<File> lateFiles = newTask.complete(succeeded);
+                        if (succeeded) {
+                            linkLateFiles(newTask, lateFiles);
+                        }
+                    } finally {
+                        queuePermits.release();
+                    }
+                });
+            });
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(1);
+        }
+        System.out.printf("Total tasks: %d%n", tasksTotal);
+        queuePermits.acquireUninterruptibly(queueSize);
+        elapsedTime = System.nanoTime() - startTime;
+        downloadService.closeDownloadThreads();
+    }
+
+    /**
+     * Keeps the download services running and accepts jobs from the spool folder and the local endpoint with a
+     * {@link DownloadDaemon} until the application is stopped.
+     */
+    public void runDaemon() {
+        if (spoolFolderName == null && daemonPort <= 0) {
+            System.err.println("Daemon mode needs the --spool folder or the --port of the job endpoint");
+            System.exit(1);
+        }
+        DownloadDaemon downloadDaemon = new DownloadDaemon(parser, hostScheduler, createOutputFolder());
+        try {
+            if (spoolFolderName != null) {
+                downloadDaemon.watchSpoolFolder(new File(spoolFolderName));
+                System.out.printf("Watching spool folder '%s'%n", new File(spoolFolderName).getAbsolutePath());
+            }
+            if (daemonPort > 0) {
+                int boundPort = downloadDaemon.startEndpoint(daemonPort);
+                System.out.printf("Accepting jobs at http://localhost:%d/jobs%n", boundPort);
+            }
+        } catch (IOException ioe) {
+            System.err.printf("Can not start daemon: %s%n", ioe.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            downloadDaemon.stop();
+            writeMetricsSummary();
+        }));
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Processes the map of {@link Future} download reports and
-     * analyzes the results.
+     * Connects to the coordinator set by the worker option. If the coordinator can not be reached the application
+     * would be closed with error code '1'.
+     */
+    private static void connectToCoordinator() {
+        int separator = coordinatorAddress.lastIndexOf(':');
+        try {
+            coordinatorClient = CoordinatorClient.connect(coordinatorAddress.substring(0, separator),
+                    Integer.parseInt(coordinatorAddress.substring(separator + 1)));
+            System.out.printf("Connected to coordinator %s%n", coordinatorAddress);
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Can not connect to coordinator '%s': %s%n", coordinatorAddress, e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses the task file, merges the tasks by URL as in a single run and hands them out to the workers with a
+     * {@link WorkCoordinator} until all of them have been finished. The file names are sent relative to the output
+     * folder, so every worker stores the files in its own output folder.
+     */
+    public void runCoordinator() {
+        TaskStore store = loadTasks(taskFileName);
+        int[] order = orderTasks(store);
+        List<WorkItem> items = new ArrayList<>();
+        for (int task : order) {
+            items.add(new WorkItem(items.size(), store.getUrl(task), store.getFiles(task), store.getChecksum(task),
+                    store.getMirrors(task)));
+        }
+        WorkCoordinator coordinator = new WorkCoordinator(items, speedLimit);
+        try {
+            int boundPort = coordinator.start(coordinatorBindAddress, coordinatorPort);
+            System.out.printf("Waiting for workers at port %d%n", boundPort);
+            startTime = System.nanoTime();
+            coordinator.awaitCompletion();
+        } catch (IOException ioe) {
+            System.err.printf("Can not start coordinator: %s%n", ioe.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        elapsedTime = System.nanoTime() - startTime;
+        downloaded = coordinator.getCompleted();
+        failed = coordinator.getFailed();
+        downloadedSize = coordinator.getDownloadedSize();
+        coordinator.stop();
+        downloadService.closeDownloadThreads();
+    }
+
+    /**
+     * Downloads the tasks handed out by the coordinator with a {@link DownloadWorker} until all the tasks of the
+     * coordinator have been finished.
+     */
+    public void runWorker() {
+        DownloadWorker worker = new DownloadWorker(coordinatorClient, hostScheduler, createOutputFolder(),
+                threadService.getConcurrency());
+        startTime = System.nanoTime();
+        try {
+            worker.run();
+        } catch (IOException ioe) {
+            System.out.printf("Connection to the coordinator has failed: %s%n", ioe.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        elapsedTime = System.nanoTime() - startTime;
+        downloaded = worker.getCompleted();
+        failed = worker.getFailed();
+        tasksTotal = downloaded + failed;
+        downloadedSize = worker.getDownloadedSize();
+        try {
+            coordinatorClient.close();
+        } catch (IOException ioe) {
+            // the connection is closed anyway
+        }
+        downloadService.closeDownloadThreads();
+    }
+
+    /**
+     * Makes the files mapped on the URL of a completed task after its download had been started.
      * 
-     * @param downloadReports a map of tasks mapped on their {@link Future} report
+     * @param task a completed task
+     * @param lateFiles the files to be made
      */
-    public void processDownloadReports(Map<Task, Future<Boolean>> downloadReports) {
-        long startTime = System.nanoTime();
-        downloadReports.forEach((task, report) -> {
+    private void linkLateFiles(Task task, List<File> lateFiles) {
+        for (File file : lateFiles) {
             try {
-                if (report.get()) {
-                    downloaded++;
-                    downloadedSize += FileUtils.sizeOf(task.getOneOfFiles());
-                } else
-                    failed++;
-            } catch (InterruptedException | ExecutionException e) {
-                System.out.printf("Error downloading from %s%n", task.getOneOfFiles());
-                System.out.printf("Error message: %s%n", e.getMessage());
-                e.printStackTrace();
+                fileLinker.link(task.getOneOfFiles(), file);
+            } catch (IOException ioe) {
+                System.out.printf("Error making file '%s' of %s%n", file.getName(), task.getUrl());
+                System.out.printf("Error message: %s%n", ioe.getMessage());
             }
-        });
+        }
+    }
+
+    /**
+     * Counts the result of a task in the report.
+     * 
+     * @param task a completed task
+     * @param succeeded true if the task has succeeded
+     */
+    private synchronized void countResult(Task task, boolean succeeded) {
+        if (succeeded) {
+            downloaded++;
+            downloadedSize += FileUtils.sizeOf(task.getOneOfFiles());
+        } else {
+            failed++;
+            if (maxFailures > 0 && failed >= maxFailures && !aborted) {
+                aborted = true;
+                System.out.printf("%d tasks have failed, no more downloads are started%n", failed);
+                hostScheduler.cancelPending();
+            }
+        }
+    }
+
+    /**
+     * Counts a task that has not been started because the run has been aborted.
+     */
+    private synchronized void skipTask() {
+        skipped++;
+    }
+
+    /**
+     * Waits for the started tasks to be completed. The download time is counted from the moment the tasks were
+     * started.
+     */
+    public void processDownloadReports() {
+        queuePermits.acquireUninterruptibly(queueSize);
         elapsedTime = System.nanoTime() - startTime;
         downloadService.closeDownloadThreads();
     }
 
+    /**
+     * Prints the progress line of the downloads once in the set interval. It is supposed to be run by a daemon
+     * thread.
+     */
+    private void printProgress() {
+        try {
+            while (true) {
+                Thread.sleep(progressInterval * 1000L);
+                System.out.println(metrics.progressLine());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the JSON summary of the downloads to the metrics file if it has been set.
+     */
+    public void writeMetricsSummary() {
+        if (metricsFileName == null) {
+            return;
+        }
+        try {
+            metrics.writeSummary(new File(metricsFileName));
+            System.out.printf("Download metrics have been written to '%s'%n", metricsFileName);
+        } catch (IOException ioe) {
+            System.out.printf("Can not write download metrics to '%s'%n", metricsFileName);
+            System.out.printf("Error message: %s%n", ioe.getMessage());
+        }
+    }
+
     public void printReport() {
         System.out.println("Download has been completed");
         System.out.printf("Tasks total: %d%n", tasksTotal);
         System.out.printf("Completed: %d%n", downloaded);
         System.out.printf("Failed: %d%n", failed);
+        if (aborted) {
+            System.out.printf("Not started: %d%n", skipped);
+        }
         System.out.printf("Total downloaded size: %s%n", FileUtils.byteCountToDisplaySize(downloadedSize));
         System.out.printf("Total download time: %.03f sec%n", (double) elapsedTime / 1_000_000_000);
         System.out.printf("Average download speed: %.03f kbit/s%n", 8.0 * 1_000_000_000 * downloadedSize / elapsedTime / 1024);
@@ -253,15 +1004,22 @@ public class App {
 
     private static class Task {
         private URL url;
+        private FileChecksum checksum;
+        private List<URL> mirrors = new ArrayList<>();
         private List<File> files = new ArrayList<>();
+        private List<File> lateFiles = new ArrayList<>();
+        private boolean completed;
+        private boolean succeeded;
 
-        public Task(URL url, File file) {
+        public Task(URL url, File file, FileChecksum checksum) {
             this.url = url;
+            this.checksum = checksum;
             this.files.add(file);
         }
 
-        public Task(URL url, List<File> files) {
+        public Task(URL url, List<File> files, FileChecksum checksum) {
             this.url = url;
+            this.checksum = checksum;
             this.files.addAll(files);
         }
 
@@ -269,10 +1027,50 @@ public class App {
             return url;
         }
 
+        public FileChecksum getChecksum() {
+            return checksum;
+        }
+
+        public List<URL> getMirrors() {
+            return mirrors;
+        }
+
         public File getOneOfFiles() {
             return files.get(0);
         }
 
+        /**
+         * Adds a file to the task whose download has already been scheduled.
+         * 
+         * @param file a file mapped on the task URL
+         * @return false if the task has already been completed and the file has not been added
+         */
+        public synchronized boolean addLateFile(File file) {
+            if (completed) {
+                return false;
+            }
+            lateFiles.add(file);
+            return true;
+        }
+
+        /**
+         * Marks the task completed.
+         * 
+         * @param succeeded true if the task has succeeded
+         * @return the files added to the task after its download had been scheduled
+         */
+        public synchronized List<File> complete(boolean succeeded) {
+            this.completed = true;
+            this.succeeded = succeeded;
+            List<File> addedFiles = lateFiles;
+            lateFiles = Collections.emptyList();
+            return addedFiles;
+        }
+
+        public synchronized boolean isSucceeded() {
+            return succeeded;
+        }
+
         public List<File> getFiles() {
             return this.files;
         }
@@ -307,11 +1105,5 @@ public class App {
                 return false;
             return true;
         }
-
-        public static Task combainTasks(Task t1, Task t2) {
-            Task result = new Task(t1.url, t1.files);
-            result.files.addAll(t2.files);
-            return result;
-        }
     }
 }
\ No newline at end of file
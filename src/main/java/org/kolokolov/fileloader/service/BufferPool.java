@@ -0,0 +1,214 @@
+package org.kolokolov.fileloader.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The class designed for sharing reusable copy buffers between the downloads. Buffer sizes are powers of two from
+ * {@value #MIN_BUFFER_SIZE} to {@value #MAX_BUFFER_SIZE} bytes, and the released buffers are kept for reuse in a list of
+ * their size. The total size of the buffers allocated by the pool never exceeds the memory budget: if a new buffer does
+ * not fit into it, released buffers of other sizes are dropped, a smaller released buffer is handed out instead, or the
+ * caller waits until a buffer is released.
+ * <p>
+ * The pool is used only when a stream starts, when it changes its buffer size and when it hands a filled buffer over,
+ * so it is synchronized by its monitor.
+ * A stream takes its buffer as a {@link StreamBuffer} that picks the size depending on the observed stream throughput
+ * and on the speed limit, so a buffer holds about {@value #BUFFER_FILLING_TIME} ms of data.
+ *
+ * @author kolokolov
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 8 * 1024; // bytes
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024; // bytes
+
+    private static final int BUFFER_FILLING_TIME = 10; // ms
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024; // bytes
+    private static final long ADAPTATION_PERIOD = 100_000_000; // ns
+
+    private final long memoryBudget;
+    private final Deque<byte[]>[] releasedBuffers;
+    private long allocatedMemory;
+
+    /**
+     * Creates an instance of the BufferPool class.
+     *
+     * @param memoryBudget maximum total size of the buffers in bytes, it is raised to the maximum buffer size if it is
+     *            less than that
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long memoryBudget) {
+        this.memoryBudget = Math.max(memoryBudget, MAX_BUFFER_SIZE);
+        this.releasedBuffers = new Deque[sizeClassOf(MAX_BUFFER_SIZE) + 1];
+        for (int i = 0; i < releasedBuffers.length; i++) {
+            releasedBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized long getAllocatedMemory() {
+        return allocatedMemory;
+    }
+
+    /**
+     * Returns the buffer size holding the data received at the passed speed within the buffer filling time.
+     *
+     * @param speed the stream speed in bytes/s
+     * @return the buffer size in bytes
+     */
+    public static int bufferSizeFor(long speed) {
+        long size = Math.min(speed / 1000 * BUFFER_FILLING_TIME, MAX_BUFFER_SIZE);
+        int bufferSize = MIN_BUFFER_SIZE;
+        while (bufferSize < size) {
+            bufferSize <<= 1;
+        }
+        return bufferSize;
+    }
+
+    private static int sizeClassOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Takes a buffer of the passed size from the pool. The method waits until the memory budget allows the buffer
+     * to be allocated, unless a smaller released buffer can be handed out instead.
+     *
+     * @param size the buffer size, a power of two between the minimum and maximum buffer sizes
+     * @return a buffer of the passed size or smaller
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized byte[] acquire(int size) throws InterruptedException {
+        byte[] buffer;
+        while ((buffer = tryAcquire(size)) == null) {
+            wait();
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer of the passed size from the pool as by the {@link #acquire(int)} method, but does not wait.
+     *
+     * @param size the buffer size, a power of two between the minimum and maximum buffer sizes
+     * @return a buffer of the passed size or smaller, or null if no buffer can be taken at once
+     */
+    public synchronized byte[] tryAcquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        byte[] buffer = releasedBuffers[sizeClass].poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        for (int i = releasedBuffers.length - 1; i >= 0 && allocatedMemory + size > memoryBudget; i--) {
+            if (i != sizeClass) {
+                while (!releasedBuffers[i].isEmpty() && allocatedMemory + size > memoryBudget) {
+                    allocatedMemory -= releasedBuffers[i].poll().length;
+                }
+            }
+        }
+        if (allocatedMemory + size <= memoryBudget) {
+            allocatedMemory += size;
+            return new byte[size];
+        }
+        for (int i = sizeClass - 1; i >= 0; i--) {
+            if (!releasedBuffers[i].isEmpty()) {
+                return releasedBuffers[i].poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the buffer to the pool for reuse.
+     *
+     * @param buffer a buffer taken from the pool
+     */
+    public synchronized void release(byte[] buffer) {
+        releasedBuffers[sizeClassOf(buffer.length)].push(buffer);
+        notifyAll();
+    }
+
+    /**
+     * Takes a buffer for a new stream.
+     *
+     * @param speedLimit the speed limit of the stream in bytes/s
+     * @return an object of the {@link StreamBuffer} type
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public StreamBuffer newStreamBuffer(long speedLimit) throws InterruptedException {
+        return new StreamBuffer(speedLimit);
+    }
+
+    /**
+     * The class designed for holding the buffer of a single stream and changing its size depending on the stream
+     * throughput. The buffer is returned to the pool when the stream buffer is closed.
+     *
+     * @author kolokolov
+     */
+    public class StreamBuffer implements AutoCloseable {
+        private final long speedLimit;
+        private byte[] buffer;
+        private long periodStartTime = System.nanoTime();
+        private long periodBytes;
+
+        private StreamBuffer(long speedLimit) throws InterruptedException {
+            this.speedLimit = speedLimit;
+            this.buffer = acquire(Math.min(INITIAL_BUFFER_SIZE, bufferSizeFor(speedLimit)));
+        }
+
+        public byte[] array() {
+            return buffer;
+        }
+
+        /**
+         * Counts the bytes copied through the buffer. Once in an adaptation period the buffer is replaced by a buffer
+         * of the size suiting the stream speed observed within the period and the speed limit.
+         *
+         * @param byteCount number of bytes copied
+         * @throws InterruptedException if the thread is interrupted while waiting for a new buffer
+         */
+        public void update(int byteCount) throws InterruptedException {
+            periodBytes += byteCount;
+            long now = System.nanoTime();
+            long periodTime = now - periodStartTime;
+            if (periodTime >= ADAPTATION_PERIOD) {
+                long speed = periodBytes * 1_000_000_000L / periodTime;
+                int size = bufferSizeFor(Math.min(speed, speedLimit));
+                if (size != buffer.length) {
+                    release(buffer);
+                    buffer = null;
+                    buffer = acquire(size);
+                }
+                periodStartTime = now;
+                periodBytes = 0;
+            }
+        }
+
+        /**
+         * Hands the filled buffer over to another thread and takes a new buffer of the same size or smaller, so the
+         * stream can go on reading while the data is being written. The buffer handed over is returned to the pool by
+         * {@link BufferPool#release(byte[])} when the data has been written. The stream never waits for the new buffer,
+         * as the buffers the pool waits for may be the ones queued by the stream itself.
+         *
+         * @return the filled buffer or null if no buffer can be taken at once and the stream keeps its buffer
+         */
+        public byte[] handOff() {
+            byte[] newBuffer = tryAcquire(buffer.length);
+            if (newBuffer == null) {
+                return null;
+            }
+            byte[] filled = buffer;
+            buffer = newBuffer;
+            return filled;
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.kolokolov.fileloader.service;
+
+/**
+ * The class designed for tuning the number of downloads performed at once while the downloads are running. Once in a
+ * control period it measures the download throughput, the failed downloads and the average time to the first byte from
+ * {@link DownloadMetrics} and changes the concurrency of {@link ThreadService} in the AIMD way: while downloads are
+ * waiting for a thread and the throughput grows, the concurrency is increased by one; when downloads fail, the
+ * throughput drops or the time to the first byte grows several times over the best one, the concurrency is decreased
+ * by a quarter. The concurrency always stays within the set bounds.
+ *
+ * @author kolokolov
+ */
+public class ConcurrencyController implements Runnable {
+
+    private final long CONTROL_PERIOD = 2000; // ms
+    private final double THROUGHPUT_GROWTH = 1.05;
+    private final double THROUGHPUT_DROP = 0.9;
+    private final double DECREASE_FACTOR = 0.75;
+    private final int FIRST_BYTE_TIME_GROWTH = 3;
+    private final long FIRST_BYTE_TIME_TOLERANCE = 50; // ms
+
+    private final ThreadService threadService;
+    private final DownloadMetrics metrics;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+
+    private long lastBytes;
+    private long lastFailed;
+    private long lastFirstByteTime; // ms
+    private long lastFirstByteCount;
+    private double lastThroughput; // bytes/ms
+    private long bestFirstByteTime = Long.MAX_VALUE; // ms
+
+    /**
+     * Creates an instance of the ConcurrencyController class and sets the initial concurrency within the bounds.
+     *
+     * @param threadService an instance of the {@link ThreadService} class executing the downloads
+     * @param metrics an instance of the {@link DownloadMetrics} class updated by the downloads
+     * @param minConcurrency the lowest number of downloads performed at once, at least 1
+     * @param maxConcurrency the highest number of downloads performed at once
+     */
+    public ConcurrencyController(ThreadService threadService, DownloadMetrics metrics, int minConcurrency,
+            int maxConcurrency) {
+        this.threadService = threadService;
+        this.metrics = metrics;
+        this.minConcurrency = Math.max(minConcurrency, 1);
+        this.maxConcurrency = Math.max(maxConcurrency, this.minConcurrency);
+        threadService.setConcurrency(
+                Math.min(Math.max(threadService.getConcurrency(), this.minConcurrency), this.maxConcurrency));
+    }
+
+    /**
+     * Controls the concurrency until the thread is interrupted. It is supposed to be run by a daemon thread.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(CONTROL_PERIOD);
+                control();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the measurements of the past control period and changes the concurrency.
+     *
+     * @return the new concurrency
+     */
+    public synchronized int control() {
+        long bytes = metrics.getDownloadedBytes();
+        long failed = metrics.getFailedDownloads();
+        long firstByteTime = metrics.getTotalFirstByteMillis();
+        long firstByteCount = metrics.getFirstByteCount();
+        double throughput = (double) (bytes - lastBytes) / CONTROL_PERIOD;
+        long periodFirstByteTime = firstByteCount > lastFirstByteCount
+                ? (firstByteTime - lastFirstByteTime) / (firstByteCount - lastFirstByteCount)
+                : -1;
+        boolean failures = failed > lastFailed;
+        boolean waiting = threadService.getWaitingDownloads() > 0;
+
+        int concurrency = threadService.getConcurrency();
+        int newConcurrency = concurrency;
+        if (failures || waiting && throughput < lastThroughput * THROUGHPUT_DROP
+                || firstByteTimeGrown(periodFirstByteTime)) {
+            newConcurrency = Math.max((int) (concurrency * DECREASE_FACTOR), minConcurrency);
+        } else if (waiting && (throughput >= lastThroughput * THROUGHPUT_GROWTH || lastThroughput == 0)) {
+            newConcurrency = Math.min(concurrency + 1, maxConcurrency);
+        }
+        if (newConcurrency != concurrency) {
+            threadService.setConcurrency(newConcurrency);
+            System.out.printf("Concurrent downloads: %d%n", newConcurrency);
+        }
+
+        if (periodFirstByteTime >= 0) {
+            bestFirstByteTime = Math.min(bestFirstByteTime, periodFirstByteTime);
+        }
+        lastBytes = bytes;
+        lastFailed = failed;
+        lastFirstByteTime = firstByteTime;
+        lastFirstByteCount = firstByteCount;
+        lastThroughput = throughput;
+        return newConcurrency;
+    }
+
+    /**
+     * Checks whether the average time to the first byte has grown several times over the best one, that is the server
+     * or the network is congested.
+     *
+     * @param periodFirstByteTime the average time to the first byte within the period in ms, or -1 if no download
+     *            has received its first byte
+     */
+    private boolean firstByteTimeGrown(long periodFirstByteTime) {
+        return periodFirstByteTime >= 0 && bestFirstByteTime != Long.MAX_VALUE
+                && periodFirstByteTime > bestFirstByteTime * FIRST_BYTE_TIME_GROWTH + FIRST_BYTE_TIME_TOLERANCE;
+    }
+}
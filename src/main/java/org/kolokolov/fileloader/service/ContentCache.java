@@ -0,0 +1,282 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The class designed for keeping the downloaded web resources between runs, so a resource that has not been modified
+ * since it was downloaded is not downloaded again. Every cached resource is stored in the cache folder as a data file
+ * and a properties file holding its URL and validators, both named after the URL hash. The data files are made out of
+ * the downloaded files and the target files are made out of the data files by {@link FileLinker}, so with hard links
+ * a cached resource takes no additional disk space.
+ * <p>
+ * The total size of the cached resources is bounded: when it exceeds the maximum size, the least recently used
+ * resources are removed. The last use time is stored in the properties file, so the order survives between runs.
+ *
+ * @author kolokolov
+ */
+public class ContentCache {
+
+    private final File folder;
+    private final long maxSize;
+    private final FileLinker fileLinker;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * Creates an instance of the ContentCache class and loads the resources cached by the previous runs.
+     *
+     * @param folder the cache folder, it is created if it does not exist
+     * @param maxSize maximum total size of the cached resources in bytes
+     * @param fileLinker an instance of the {@link FileLinker} class making the data and target files
+     * @throws IOException if the cache folder can not be created
+     */
+    public ContentCache(File folder, long maxSize, FileLinker fileLinker) throws IOException {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        this.fileLinker = fileLinker;
+        Files.createDirectories(folder.toPath());
+        load();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Loads the properties files of the cache folder in the order of their last use. Entries without a data file of
+     * the stored length and unfinished data files are removed.
+     */
+    private void load() {
+        List<Entry> loaded = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            } else if (file.getName().endsWith(".properties")) {
+                Entry entry = Entry.load(file);
+                if (entry != null && entry.dataFile.length() == entry.length) {
+                    loaded.add(entry);
+                } else {
+                    file.delete();
+                    new File(folder, hashOf(file.getName()) + ".data").delete();
+                }
+            }
+        }
+        loaded.sort(Comparator.comparingLong(entry -> entry.lastUse));
+        for (Entry entry : loaded) {
+            entries.put(entry.url, entry);
+            size += entry.length;
+        }
+        evict();
+    }
+
+    private static String hashOf(String fileName) {
+        return fileName.substring(0, fileName.indexOf('.'));
+    }
+
+    private static String hashOf(URL url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest(url.toString().getBytes(StandardCharsets.UTF_8))) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Returns the cached copy of the web resource.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @return the cache entry or null if the resource is not cached
+     */
+    public synchronized Entry get(URL url) {
+        return entries.get(url.toString());
+    }
+
+    /**
+     * Makes the target file out of the cached copy of the web resource and stores the time of its use.
+     *
+     * @param entry the cache entry
+     * @param target a file to be made
+     * @throws IOException if the file can not be made, e.g. the entry has been evicted in the meantime
+     */
+    public void materialize(Entry entry, File target) throws IOException {
+        fileLinker.link(entry.dataFile, target);
+        synchronized (this) {
+            if (entries.get(entry.url) != entry) {
+                return;
+            }
+            entry.lastUse = System.currentTimeMillis();
+        }
+        entry.save();
+    }
+
+    /**
+     * Stores the downloaded file as the cached copy of the web resource. A resource without validators or larger than
+     * the maximum cache size is not stored. The least recently used resources are removed if the cache has exceeded
+     * its maximum size.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param resource the properties of the downloaded web resource
+     * @param file the downloaded file
+     * @throws IOException if the file can not be stored
+     */
+    public void put(URL url, RemoteResource resource, File file) throws IOException {
+        long length = file.length();
+        if (resource.getETag() == null && resource.getLastModified() == null || length > maxSize) {
+            return;
+        }
+        remove(url);
+        String hash = hashOf(url);
+        File tempFile = new File(folder, hash + ".data.tmp");
+        fileLinker.link(file, tempFile);
+        Entry entry = new Entry(url.toString(), resource.getETag(), resource.getLastModified(), length,
+                new File(folder, hash + ".data"), new File(folder, hash + ".properties"));
+        Files.move(tempFile.toPath(), entry.dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        entry.save();
+        synchronized (this) {
+            entries.put(entry.url, entry);
+            size += length;
+            evict();
+        }
+    }
+
+    /**
+     * Removes the cached copy of the web resource. It must be done before the files made out of the copy are
+     * downloaded again, as with hard links they share their data with it.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     */
+    public synchronized void remove(URL url) {
+        Entry entry = entries.remove(url.toString());
+        if (entry != null) {
+            size -= entry.length;
+            entry.delete();
+        }
+    }
+
+    /**
+     * Removes the least recently used entries while the cache size exceeds the maximum size.
+     */
+    private synchronized void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.length;
+            entry.delete();
+        }
+    }
+
+    /**
+     * The class designed for storing the URL, the validators and the length of a cached web resource.
+     *
+     * @author kolokolov
+     */
+    public static class Entry {
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final long length;
+        private final File dataFile;
+        private final File propertiesFile;
+        private long lastUse = System.currentTimeMillis();
+
+        private Entry(String url, String eTag, String lastModified, long length, File dataFile,
+                File propertiesFile) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.dataFile = dataFile;
+            this.propertiesFile = propertiesFile;
+        }
+
+        private static Entry load(File propertiesFile) {
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(propertiesFile.toPath())) {
+                properties.load(input);
+                Entry entry = new Entry(properties.getProperty("url"), properties.getProperty("etag"),
+                        properties.getProperty("lastModified"), Long.parseLong(properties.getProperty("length")),
+                        new File(propertiesFile.getParentFile(), hashOf(propertiesFile.getName()) + ".data"),
+                        propertiesFile);
+                entry.lastUse = Long.parseLong(properties.getProperty("lastUse"));
+                return entry.url == null ? null : entry;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Stores the entry to a temporary file and then replaces the properties file with it.
+         */
+        private synchronized void save() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("url", url);
+            if (eTag != null) {
+                properties.setProperty("etag", eTag);
+            }
+            if (lastModified != null) {
+                properties.setProperty("lastModified", lastModified);
+            }
+            properties.setProperty("length", String.valueOf(length));
+            properties.setProperty("lastUse", String.valueOf(lastUse));
+            File tempFile = new File(propertiesFile.getPath() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(tempFile.toPath())) {
+                properties.store(output, "file-loader cache entry");
+            }
+            Files.move(tempFile.toPath(), propertiesFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void delete() {
+            propertiesFile.delete();
+            dataFile.delete();
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The class designed for talking to the {@link WorkCoordinator} on behalf of a worker. A request is written and its
+ * answer is read under the monitor of the client, so the client can be shared by the download threads of the worker
+ * and by its heartbeat thread.
+ *
+ * @author kolokolov
+ */
+public class CoordinatorClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final BufferedReader input;
+    private final PrintWriter output;
+    private final long speedLimit;
+    private final long leaseTime;
+    private boolean done;
+
+    private CoordinatorClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.output = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        String[] welcome = request("HELLO").split(" ");
+        this.speedLimit = Long.parseLong(welcome[1]);
+        this.leaseTime = Long.parseLong(welcome[2]);
+    }
+
+    /**
+     * Connects to the coordinator and starts the heartbeat thread keeping the leases of the worker.
+     *
+     * @param host the coordinator host
+     * @param port the coordinator port
+     * @return an object of the CoordinatorClient type
+     * @throws IOException if the coordinator can not be reached
+     */
+    public static CoordinatorClient connect(String host, int port) throws IOException {
+        CoordinatorClient client = new CoordinatorClient(new Socket(host, port));
+        Thread heartbeat = new Thread(client::sendHeartbeats, "coordinator-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        return client;
+    }
+
+    /**
+     * @return the global speed limit in bits/s shared by all the workers, 0 if it is not set
+     */
+    public long getSpeedLimit() {
+        return speedLimit;
+    }
+
+    /**
+     * Asks the coordinator for the next task.
+     *
+     * @return the task or null if there is no task to be handed out now or at all, see {@link #isDone()}
+     * @throws IOException if the connection has failed
+     */
+    public synchronized WorkItem next() throws IOException {
+        String answer = request("NEXT");
+        if (answer.startsWith("TASK\t")) {
+            return WorkItem.decode(answer.substring("TASK\t".length()));
+        }
+        if ("DONE".equals(answer)) {
+            done = true;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if all the tasks of the coordinator have been finished
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Reports the result of a task to the coordinator.
+     *
+     * @param item the task
+     * @param succeeded true if the task has succeeded
+     * @param size the size of the downloaded file in bytes
+     * @throws IOException if the connection has failed
+     */
+    public void report(WorkItem item, boolean succeeded, long size) throws IOException {
+        request(String.format("RESULT %d %b %d", item.getId(), succeeded, size));
+    }
+
+    /**
+     * Takes the passed number of tokens from the global token bucket of the coordinator.
+     *
+     * @param byteCount number of tokens to be taken
+     * @return time to wait in nanoseconds before the tokens can be used
+     * @throws IOException if the connection has failed
+     */
+    public long grant(long byteCount) throws IOException {
+        return Long.parseLong(request("GRANT " + byteCount).split(" ")[1]);
+    }
+
+    private synchronized String request(String request) throws IOException {
+        output.println(request);
+        String answer = input.readLine();
+        if (answer == null) {
+            throw new EOFException("Coordinator has closed the connection");
+        }
+        return answer;
+    }
+
+    private void sendHeartbeats() {
+        try {
+            while (!socket.isClosed()) {
+                Thread.sleep(leaseTime / 3);
+                request("PING");
+            }
+        } catch (IOException | InterruptedException e) {
+            // the connection has been closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,486 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.kolokolov.fileloader.service.TaskFileParser.TaskDescription;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The service designed for accepting download jobs while the application keeps running, so the download threads,
+ * connections and speed limiters stay warm between the jobs. A job is a task file that is either dropped into the
+ * spool folder or posted to the local HTTP endpoint. The downloads of all the jobs are scheduled by the same
+ * {@link HostScheduler}, and the status of every job can be requested from the endpoint.
+ * <p>
+ * A file appearing in the spool folder is moved to its 'jobs' subfolder as soon as it has been read, and the status
+ * of the job is written next to it when the job is finished. Files whose names start with a dot are ignored, so a task
+ * file is supposed to be written under such a name and then renamed.
+ * <p>
+ * The endpoint is started only on request and is bound to the loopback address. A request is rejected unless its Host
+ * header and its Origin header, if it is sent, name the loopback address and the port of the endpoint, so a web page
+ * can neither post a job nor read the status by a cross-site request or by rebinding its domain name. It serves the
+ * following requests:
+ * <ul>
+ * <li>POST /jobs with the task file lines as the body submits a job and returns its status;</li>
+ * <li>GET /jobs returns the status of all the jobs;</li>
+ * <li>GET /jobs/&lt;id&gt; returns the status of the job.</li>
+ * </ul>
+ * <p>
+ * A job is failed at once if a target file resolves outside the output folder or is being downloaded by another
+ * running job. The status of the last {@value #MAX_FINISHED_JOBS} finished jobs is kept in memory.
+ *
+ * @author kolokolov
+ */
+public class DownloadDaemon {
+
+    /**
+     * The states of a job.
+     */
+    public enum JobState {
+        RUNNING, DONE, FAILED
+    }
+
+    private static final int MAX_FINISHED_JOBS = 1000;
+    private static final Set<String> LOOPBACK_HOSTS = new HashSet<>(
+            Arrays.asList("localhost", "127.0.0.1", "[::1]"));
+
+    private final TaskFileParser parser;
+    private final HostScheduler hostScheduler;
+    private final Path outputFolder;
+    private final AtomicLong jobCount = new AtomicLong();
+    private final ConcurrentMap<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final Queue<Long> finishedJobs = new ConcurrentLinkedQueue<>();
+    private final Map<Path, Long> activeTargets = new HashMap<>();
+
+    private File spoolFolder;
+    private File jobsFolder;
+    private WatchService watchService;
+    private HttpServer server;
+
+    /**
+     * Creates an instance of the DownloadDaemon class.
+     *
+     * @param parser the parser of the task files
+     * @param hostScheduler the scheduler starting the downloads of all the jobs
+     * @param outputFolder the folder the files of all the jobs are stored in
+     */
+    public DownloadDaemon(TaskFileParser parser, HostScheduler hostScheduler, File outputFolder) {
+        this.parser = parser;
+        this.hostScheduler = hostScheduler;
+        this.outputFolder = outputFolder.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Starts watching the spool folder. The task files already lying in the folder are submitted at once.
+     *
+     * @param spoolFolder the folder the task files are dropped into
+     * @throws IOException if the folder can not be created or watched
+     */
+    public void watchSpoolFolder(File spoolFolder) throws IOException {
+        this.spoolFolder = spoolFolder;
+        this.jobsFolder = new File(spoolFolder, "jobs");
+        Files.createDirectories(jobsFolder.toPath());
+        watchService = FileSystems.getDefault().newWatchService();
+        spoolFolder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        Thread watcher = new Thread(this::watch, "spool-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        scanSpoolFolder();
+    }
+
+    /**
+     * Starts the HTTP endpoint on the loopback address.
+     *
+     * @param port the port number, 0 to take any free port
+     * @return the port the endpoint is bound to
+     * @throws IOException if the port can not be bound
+     */
+    public int startEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops watching the spool folder and stops the endpoint. The jobs already submitted are not cancelled.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ioe) {
+                System.out.printf("Error closing spool watcher: %s%n", ioe.getMessage());
+            }
+        }
+    }
+
+    public Job getJob(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Parses the lines of a task file and schedules the downloads of the job. The files mapped on the same URL are
+     * downloaded once, as in a single run. The target files are reserved for the job until their downloads are
+     * finished.
+     *
+     * @param source the name of the task file or of the endpoint the job has been received from
+     * @param lines the lines of the task file
+     * @return the job
+     */
+    public Job submit(String source, List<String> lines) {
+        Job job = new Job(jobCount.incrementAndGet(), source);
+        jobs.put(job.id, job);
+        Set<TaskDescription> taskDescriptions = parser.linesToTaskSet(lines);
+        if (parser.targetFileHasDuplicates(taskDescriptions)) {
+            job.fail("Task file includes target file duplications");
+            finish(job);
+            return job;
+        }
+        Map<String, JobTask> tasks = new LinkedHashMap<>();
+        for (TaskDescription td : taskDescriptions) {
+            Path target;
+            try {
+                target = outputFolder.resolve(td.getFile()).normalize();
+            } catch (InvalidPathException ipe) {
+                target = outputFolder;
+            }
+            if (!target.startsWith(outputFolder) || target.equals(outputFolder)) {
+                job.fail(String.format("Target file '%s' is outside the output folder", td.getFile()));
+                finish(job);
+                return job;
+            }
+            try {
+                URL url = new URL(td.getUrl());
+                JobTask task = tasks.computeIfAbsent(url.toString(), key -> new JobTask(url));
+                task.files.add(target.toFile());
+                if (task.checksum == null) {
+                    task.checksum = td.getChecksum();
+                }
+                for (String mirror : td.getMirrors()) {
+                    task.mirrors.add(new URL(mirror));
+                }
+            } catch (IOException ioe) {
+                System.out.printf("Error processing task description '%s : %s'%n", td.getUrl(), td.getFile());
+                System.out.printf("Error message: %s%n", ioe.getMessage());
+            }
+        }
+        String conflict = reserveTargets(job, tasks.values());
+        if (conflict != null) {
+            job.fail(conflict);
+            finish(job);
+            return job;
+        }
+        System.out.printf("Job %d from %s: %d tasks%n", job.id, source, tasks.size());
+        job.start(tasks.size());
+        for (JobTask task : tasks.values()) {
+            hostScheduler.schedule(task.url, task.files, task.checksum, task.mirrors)
+                    .whenComplete((result, error) -> {
+                        releaseTargets(task);
+                        boolean succeeded = result != null && result;
+                        if (job.count(succeeded, succeeded ? FileUtils.sizeOf(task.files.get(0)) : 0)) {
+                            finish(job);
+                        }
+                    });
+        }
+        if (tasks.isEmpty()) {
+            finish(job);
+        }
+        return job;
+    }
+
+    /**
+     * Reserves the target files of the job unless some of them are reserved by another running job.
+     *
+     * @return null if the files have been reserved, otherwise the description of the conflict
+     */
+    private synchronized String reserveTargets(Job job, Collection<JobTask> tasks) {
+        for (JobTask task : tasks) {
+            for (File file : task.files) {
+                Long owner = activeTargets.get(file.toPath());
+                if (owner != null) {
+                    return String.format("Target file '%s' is being downloaded by job %d",
+                            outputFolder.relativize(file.toPath()), owner);
+                }
+            }
+        }
+        tasks.forEach(task -> task.files.forEach(file -> activeTargets.put(file.toPath(), job.id)));
+        return null;
+    }
+
+    private synchronized void releaseTargets(JobTask task) {
+        task.files.forEach(file -> activeTargets.remove(file.toPath()));
+    }
+
+    /**
+     * Reports the finished job and forgets the oldest finished jobs beyond the maximum number.
+     */
+    private void finish(Job job) {
+        finishedJobs.add(job.id);
+        while (finishedJobs.size() > MAX_FINISHED_JOBS) {
+            Long oldest = finishedJobs.poll();
+            if (oldest != null) {
+                jobs.remove(oldest);
+            }
+        }
+        System.out.printf("Job %d has been finished: %d completed, %d failed%n", job.id, job.getCompleted(),
+                job.getFailed());
+        if (jobsFolder != null) {
+            try {
+                Files.write(new File(jobsFolder, job.id + ".status").toPath(),
+                        job.toJson().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ioe) {
+                System.out.printf("Can not write status of job %d: %s%n", job.id, ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits for the files created in the spool folder and submits them. The folder is scanned again if some events
+     * have been lost.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                scanSpoolFolder();
+                if (!key.reset()) {
+                    System.out.printf("Spool folder '%s' is no longer watched%n", spoolFolder);
+                    return;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException cwse) {
+            // the daemon has been stopped
+        }
+    }
+
+    private synchronized void scanSpoolFolder() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolFolder.toPath(),
+                path -> Files.isRegularFile(path) && !path.getFileName().toString().startsWith("."))) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                    Job job = submit(name, lines);
+                    Files.move(file, new File(jobsFolder, job.id + "-" + name).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException ioe) {
+                    System.out.printf("Task file '%s' can not be read: %s%n", name, ioe.getMessage());
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.printf("Spool folder '%s' can not be read: %s%n", spoolFolder, ioe.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the authority taken from the Host or Origin header names the loopback address and the endpoint port.
+     */
+    private boolean isLocal(String authority) {
+        int port = server.getAddress().getPort();
+        for (String host : LOOPBACK_HOSTS) {
+            if (authority.equalsIgnoreCase(host + ":" + port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            String origin = exchange.getRequestHeaders().getFirst("Origin");
+            if (host == null || !isLocal(host)
+                    || origin != null && !(origin.startsWith("http://") && isLocal(origin.substring(7)))) {
+                respond(exchange, 403, "{\"error\": \"foreign host or origin\"}");
+            } else if ("POST".equals(method) && path.equals("/jobs")) {
+                List<String> lines;
+                try (InputStream body = exchange.getRequestBody()) {
+                    lines = IOUtils.readLines(body, StandardCharsets.UTF_8);
+                }
+                respond(exchange, 202, submit("endpoint", lines).toJson());
+            } else if ("GET".equals(method) && path.equals("/jobs")) {
+                StringBuilder json = new StringBuilder("[");
+                jobs.values().stream().sorted((a, b) -> Long.compare(a.id, b.id))
+                        .forEach(job -> json.append(json.length() > 1 ? ",\n" : "\n").append(job.toJson()));
+                respond(exchange, 200, json.append("\n]").toString());
+            } else if ("GET".equals(method) && path.startsWith("/jobs/")) {
+                Job job = null;
+                try {
+                    job = jobs.get(Long.parseLong(path.substring("/jobs/".length())));
+                } catch (NumberFormatException nfe) {
+                    // the job does not exist
+                }
+                if (job == null) {
+                    respond(exchange, 404, "{\"error\": \"no such job\"}");
+                } else {
+                    respond(exchange, 200, job.toJson());
+                }
+            } else {
+                respond(exchange, 405, "{\"error\": \"unsupported request\"}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Class is designed for storing the files of a job mapped on the same URL.
+     */
+    private static class JobTask {
+        private final URL url;
+        private final List<File> files = new ArrayList<>();
+        private final List<URL> mirrors = new ArrayList<>();
+        private FileChecksum checksum;
+
+        public JobTask(URL url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * The class designed for storing the status of a job.
+     *
+     * @author kolokolov
+     */
+    public static class Job {
+        private final long id;
+        private final String source;
+        private final long startTime = System.nanoTime();
+        private JobState state = JobState.RUNNING;
+        private String error;
+        private int total;
+        private int completed;
+        private int failed;
+        private long bytes;
+        private long elapsedTime;
+
+        private Job(long id, String source) {
+            this.id = id;
+            this.source = source;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public synchronized JobState getState() {
+            return state;
+        }
+
+        public synchronized int getTotal() {
+            return total;
+        }
+
+        public synchronized int getCompleted() {
+            return completed;
+        }
+
+        public synchronized int getFailed() {
+            return failed;
+        }
+
+        private synchronized void start(int total) {
+            this.total = total;
+            if (total == 0) {
+                state = JobState.DONE;
+                elapsedTime = System.nanoTime() - startTime;
+            }
+        }
+
+        private synchronized void fail(String error) {
+            this.error = error;
+            state = JobState.FAILED;
+            elapsedTime = System.nanoTime() - startTime;
+        }
+
+        /**
+         * Counts the result of a task of the job.
+         *
+         * @return true if it was the last task of the job
+         */
+        private synchronized boolean count(boolean succeeded, long size) {
+            if (succeeded) {
+                completed++;
+                bytes += size;
+            } else {
+                failed++;
+            }
+            if (completed + failed < total) {
+                return false;
+            }
+            state = failed == 0 ? JobState.DONE : JobState.FAILED;
+            elapsedTime = System.nanoTime() - startTime;
+            return true;
+        }
+
+        public synchronized String toJson() {
+            long time = state == JobState.RUNNING ? System.nanoTime() - startTime : elapsedTime;
+            StringBuilder json = new StringBuilder();
+            json.append(String.format("{\"id\": %d, \"source\": \"%s\", \"state\": \"%s\", \"tasks\": %d, "
+                    + "\"completed\": %d, \"failed\": %d, \"bytes\": %d, \"elapsedMillis\": %d", id,
+                    DownloadMetrics.escape(source), state, total, completed, failed, bytes, time / 1_000_000));
+            if (error != null) {
+                json.append(String.format(", \"error\": \"%s\"", DownloadMetrics.escape(error)));
+            }
+            return json.append('}').toString();
+        }
+    }
+}
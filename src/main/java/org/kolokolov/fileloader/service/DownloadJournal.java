@@ -0,0 +1,273 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * The class designed for storing the progress of a download on disk, so an interrupted download can be continued from
+ * the last committed offset of every segment. The journal keeps the URL, the validators and the length of the web
+ * resource together with the segment map and is replaced atomically on every commit. A segment can be split while it is
+ * being downloaded, so its tail is downloaded by another connection.
+ *
+ * @author kolokolov
+ */
+public class DownloadJournal {
+
+    private final File journalFile;
+    private final String url;
+    private final long contentLength;
+    private final String eTag;
+    private final String lastModified;
+    private final List<Segment> segments;
+
+    private DownloadJournal(File journalFile, String url, long contentLength, String eTag, String lastModified,
+            List<Segment> segments) {
+        this.journalFile = journalFile;
+        this.url = url;
+        this.contentLength = contentLength;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the journal file of the web resource. The file is kept in the folder of the target files and is named
+     * after the URL hash, so it does not depend on the target file order.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param folder the folder of the target files
+     * @return the journal file
+     */
+    public static File journalFileOf(URL url, File folder) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder name = new StringBuilder(".");
+            for (byte b : digest.digest(url.toString().getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(folder, name.append(".journal").toString());
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Loads the journal of the web resource if it exists and still describes the same resource. Otherwise creates a
+     * new journal with the resource split into the passed number of segments.
+     *
+     * @param journalFile the journal file
+     * @param url an absolute URL of a web resource representing a file
+     * @param resource the properties of the web resource
+     * @param segmentNumber number of segments of a new journal
+     * @return an object of the DownloadJournal type
+     */
+    public static DownloadJournal open(File journalFile, URL url, RemoteResource resource, int segmentNumber) {
+        DownloadJournal journal = load(journalFile);
+        if (journal != null && journal.describes(url, resource)) {
+            return journal;
+        }
+        return create(journalFile, url, resource, segmentNumber);
+    }
+
+    /**
+     * Creates a new journal with the web resource split into the passed number of segments. The journal is not stored
+     * on disk until it is saved or committed.
+     *
+     * @param journalFile the journal file
+     * @param url an absolute URL of a web resource representing a file
+     * @param resource the properties of the web resource
+     * @param segmentNumber number of segments
+     * @return an object of the DownloadJournal type
+     */
+    public static DownloadJournal create(File journalFile, URL url, RemoteResource resource, int segmentNumber) {
+        long length = resource.getContentLength();
+        long segmentSize = (length + segmentNumber - 1) / segmentNumber;
+        List<Segment> segments = new ArrayList<>();
+        for (long start = 0; start < length; start += segmentSize) {
+            segments.add(new Segment(start, Math.min(start + segmentSize, length) - 1, start));
+        }
+        return new DownloadJournal(journalFile, url.toString(), length, resource.getETag(), resource.getLastModified(),
+                segments);
+    }
+
+    private static DownloadJournal load(File journalFile) {
+        if (!journalFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(journalFile.toPath())) {
+            properties.load(input);
+            List<Segment> segments = new ArrayList<>();
+            int count = Integer.parseInt(properties.getProperty("segments"));
+            for (int i = 0; i < count; i++) {
+                String[] values = properties.getProperty("segment." + i).split(",");
+                segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])));
+            }
+            return new DownloadJournal(journalFile, properties.getProperty("url"),
+                    Long.parseLong(properties.getProperty("length")), properties.getProperty("etag"),
+                    properties.getProperty("lastModified"), segments);
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Journal '%s' can not be read and will be replaced%n", journalFile.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the journal was written for the same version of the web resource. A resource without validators
+     * can not be checked and is never considered the same.
+     */
+    private boolean describes(URL url, RemoteResource resource) {
+        if (resource.getETag() == null && resource.getLastModified() == null) {
+            return false;
+        }
+        return this.url.equals(url.toString()) && contentLength == resource.getContentLength()
+                && Objects.equals(eTag, resource.getETag())
+                && Objects.equals(lastModified, resource.getLastModified());
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return Collections.unmodifiableList(new ArrayList<>(segments));
+    }
+
+    /**
+     * @return the number of bytes committed in all segments
+     */
+    public synchronized long getCommittedBytes() {
+        return segments.stream().mapToLong(segment -> segment.position - segment.first).sum();
+    }
+
+    /**
+     * @return true if the journal has committed bytes, i.e. it was loaded from an interrupted download
+     */
+    public boolean isResumed() {
+        return getCommittedBytes() > 0;
+    }
+
+    /**
+     * Moves the segment position forward by the number of bytes that have been durably written and stores the
+     * journal on disk.
+     *
+     * @param segment a segment of this journal
+     * @param byteCount number of bytes written
+     * @throws IOException
+     */
+    public synchronized void commit(Segment segment, long byteCount) throws IOException {
+        segment.position = Math.min(segment.position + byteCount, segment.last + 1);
+        save();
+    }
+
+    /**
+     * Splits the incomplete segment with the most remaining bytes in two halves, so the second half can be downloaded
+     * by another connection. The segment keeps the first half and is completed as soon as its position reaches the
+     * new last byte.
+     *
+     * @param minRemaining the least number of remaining bytes of a segment to be split
+     * @return the new segment holding the second half or null if no segment has enough remaining bytes
+     */
+    public synchronized Segment splitLargestSegment(long minRemaining) {
+        Segment largest = null;
+        for (Segment segment : segments) {
+            if (!segment.isComplete() && segment.getRemaining() >= minRemaining
+                    && (largest == null || segment.getRemaining() > largest.getRemaining())) {
+                largest = segment;
+            }
+        }
+        if (largest == null) {
+            return null;
+        }
+        long middle = largest.position + largest.getRemaining() / 2;
+        Segment secondHalf = new Segment(middle, largest.last, middle);
+        largest.last = middle - 1;
+        segments.add(secondHalf);
+        return secondHalf;
+    }
+
+    /**
+     * Stores the journal to a temporary file and then replaces the journal file with it.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        properties.setProperty("length", String.valueOf(contentLength));
+        if (eTag != null) {
+            properties.setProperty("etag", eTag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        properties.setProperty("committed", String.valueOf(getCommittedBytes()));
+        properties.setProperty("segments", String.valueOf(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            properties.setProperty("segment." + i,
+                    String.format("%d,%d,%d", segment.first, segment.last, segment.position));
+        }
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(tempFile.toPath())) {
+            properties.store(output, "file-loader download journal");
+        }
+        Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the journal file after the download has been completed.
+     */
+    public void delete() {
+        journalFile.delete();
+    }
+
+    /**
+     * The class designed for storing a byte range of the web resource and the position of its first byte that has
+     * not been committed yet.
+     *
+     * @author kolokolov
+     */
+    public static class Segment {
+        private final long first;
+        private volatile long last;
+        private volatile long position;
+
+        public Segment(long first, long last, long position) {
+            this.first = first;
+            this.last = last;
+            this.position = position;
+        }
+
+        public long getFirst() {
+            return first;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getRemaining() {
+            return last - position + 1;
+        }
+
+        public boolean isComplete() {
+            return position > last;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The class designed for collecting the download metrics: the downloaded bytes, the time to the first byte and the
+ * speed of every download, the time spent waiting for the speed limiter, the number of queued and active downloads and
+ * of open connections. The counters are updated by the download threads without locking, so they can be read at any
+ * time via JMX or as a progress line, and a summary of all the downloads can be written as JSON at exit.
+ * <p>
+ * The speeds and the times to the first byte are counted in histograms with power-of-two bucket bounds: the bucket
+ * {@code i} counts values from {@code 2^(i-1)} up to {@code 2^i - 1}, the bucket 0 counts zeros.
+ * <p>
+ * Only the aggregates are kept for all the downloads. The per-download lines of the summary are a uniform random
+ * sample of at most {@value #MAX_SAMPLED_TASKS} finished downloads, so the memory used by the metrics does not grow
+ * with the number of downloads of a long batch or of a daemon.
+ *
+ * @author kolokolov
+ */
+public class DownloadMetrics implements DownloadMetricsMBean {
+
+    public static final String OBJECT_NAME = "org.kolokolov.fileloader:type=DownloadMetrics";
+
+    private static final int HISTOGRAM_SIZE = 32;
+    private static final int MAX_SAMPLED_TASKS = 1000;
+
+    private final long startTime = System.nanoTime();
+
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder completedDownloads = new LongAdder();
+    private final LongAdder failedDownloads = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rateLimitWaitTime = new LongAdder(); // ns
+    private final LongAdder totalFirstByteTime = new LongAdder(); // ns
+    private final LongAdder firstByteCount = new LongAdder();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final AtomicInteger queuedDownloads = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLongArray throughputHistogram = new AtomicLongArray(HISTOGRAM_SIZE); // kbit/s
+    private final AtomicLongArray firstByteTimeHistogram = new AtomicLongArray(HISTOGRAM_SIZE); // ms
+    private final TaskMetrics[] sampledTasks = new TaskMetrics[MAX_SAMPLED_TASKS];
+    private long finishedTaskCount; // guarded by sampledTasks
+
+    private long progressBytes;
+    private long progressTime = startTime;
+
+    /**
+     * Registers the metrics in the platform MBean server under the {@value #OBJECT_NAME} name. A failure is reported
+     * and does not stop the application.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException jme) {
+            System.out.printf("Download metrics can not be registered in JMX: %s%n", jme.getMessage());
+        }
+    }
+
+    /**
+     * Starts collecting the metrics of a download.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @return an object of the {@link TaskMetrics} type
+     */
+    public TaskMetrics startTask(URL url) {
+        activeDownloads.incrementAndGet();
+        return new TaskMetrics(url);
+    }
+
+    public void downloadQueued() {
+        queuedDownloads.incrementAndGet();
+    }
+
+    public void downloadDequeued() {
+        queuedDownloads.decrementAndGet();
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
+    @Override
+    public long getCompletedDownloads() {
+        return completedDownloads.sum();
+    }
+
+    @Override
+    public long getFailedDownloads() {
+        return failedDownloads.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return activeDownloads.get();
+    }
+
+    @Override
+    public int getQueuedDownloads() {
+        return queuedDownloads.get();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getRateLimitWaitMillis() {
+        return rateLimitWaitTime.sum() / 1_000_000;
+    }
+
+    /**
+     * @return the sum of the times to the first byte of all the downloads in ms
+     */
+    public long getTotalFirstByteMillis() {
+        return totalFirstByteTime.sum() / 1_000_000;
+    }
+
+    /**
+     * @return the number of downloads that have received their first byte
+     */
+    public long getFirstByteCount() {
+        return firstByteCount.sum();
+    }
+
+    @Override
+    public long getAverageFirstByteMillis() {
+        long count = firstByteCount.sum();
+        return count == 0 ? 0 : totalFirstByteTime.sum() / count / 1_000_000;
+    }
+
+    /**
+     * @return the average speed since the metrics were created in kbit/s
+     */
+    @Override
+    public long getAverageSpeed() {
+        return speedOf(getDownloadedBytes(), System.nanoTime() - startTime);
+    }
+
+    @Override
+    public long[] getThroughputHistogram() {
+        return toArray(throughputHistogram);
+    }
+
+    @Override
+    public long[] getFirstByteTimeHistogram() {
+        return toArray(firstByteTimeHistogram);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] values = new long[histogram.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = histogram.get(i);
+        }
+        return values;
+    }
+
+    private static void count(AtomicLongArray histogram, long value) {
+        histogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(Math.max(value, 0)), HISTOGRAM_SIZE - 1));
+    }
+
+    /**
+     * @return speed in kbit/s
+     */
+    private static long speedOf(long byteCount, long time) {
+        return time <= 0 ? 0 : (long) (8.0 * 1_000_000_000 * byteCount / time / 1024);
+    }
+
+    /**
+     * Returns a single line describing the current state of the downloads. The current speed is measured since the
+     * previous progress line.
+     *
+     * @return the progress line
+     */
+    public synchronized String progressLine() {
+        long now = System.nanoTime();
+        long bytes = getDownloadedBytes();
+        long speed = speedOf(bytes - progressBytes, now - progressTime);
+        progressBytes = bytes;
+        progressTime = now;
+        return String.format("Progress: %d completed, %d failed, %d active, %d queued, %d connections, %s at %d kbit/s",
+                getCompletedDownloads(), getFailedDownloads(), getActiveDownloads(), getQueuedDownloads(),
+                getActiveConnections(), FileUtils.byteCountToDisplaySize(bytes), speed);
+    }
+
+    /**
+     * Writes the summary of all the finished downloads and the sampled downloads to the file as a JSON object.
+     *
+     * @param file the summary file
+     * @throws IOException
+     */
+    public void writeSummary(File file) throws IOException {
+        long elapsedTime = System.nanoTime() - startTime;
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            writer.println("{");
+            writer.printf("  \"elapsedMillis\": %d,%n", elapsedTime / 1_000_000);
+            writer.printf("  \"completed\": %d,%n", getCompletedDownloads());
+            writer.printf("  \"failed\": %d,%n", getFailedDownloads());
+            writer.printf("  \"cacheHits\": %d,%n", getCacheHits());
+            writer.printf("  \"downloadedBytes\": %d,%n", getDownloadedBytes());
+            writer.printf("  \"averageSpeed\": %d,%n", speedOf(getDownloadedBytes(), elapsedTime));
+            writer.printf("  \"rateLimitWaitMillis\": %d,%n", getRateLimitWaitMillis());
+            writer.printf("  \"averageFirstByteMillis\": %d,%n", getAverageFirstByteMillis());
+            writer.printf("  \"throughputHistogram\": %s,%n", histogramToJson(throughputHistogram));
+            writer.printf("  \"firstByteTimeHistogram\": %s,%n", histogramToJson(firstByteTimeHistogram));
+            List<TaskMetrics> tasks = sampleTasks();
+            writer.printf("  \"sampledTasks\": %d,%n", tasks.size());
+            writer.println("  \"tasks\": [");
+            String separator = "";
+            for (TaskMetrics task : tasks) {
+                writer.print(separator);
+                writer.printf("    {\"url\": \"%s\", \"succeeded\": %b, \"bytes\": %d, \"millis\": %d, "
+                        + "\"firstByteMillis\": %d, \"rateLimitWaitMillis\": %d, \"speed\": %d}",
+                        escape(task.url.toString()), task.succeeded, task.bytes.sum(), task.getTime() / 1_000_000,
+                        task.getFirstByteTime() / 1_000_000, task.waitTime.sum() / 1_000_000, task.getSpeed());
+                separator = String.format(",%n");
+            }
+            writer.printf("%n  ]%n}%n");
+        }
+    }
+
+    private List<TaskMetrics> sampleTasks() {
+        synchronized (sampledTasks) {
+            int size = (int) Math.min(finishedTaskCount, MAX_SAMPLED_TASKS);
+            return new ArrayList<>(Arrays.asList(sampledTasks).subList(0, size));
+        }
+    }
+
+    /**
+     * Adds the finished download to the sample by reservoir sampling: the n-th download replaces a random sampled one
+     * with the probability of {@value #MAX_SAMPLED_TASKS}/n.
+     */
+    private void sampleTask(TaskMetrics task) {
+        synchronized (sampledTasks) {
+            long count = finishedTaskCount++;
+            if (count < MAX_SAMPLED_TASKS) {
+                sampledTasks[(int) count] = task;
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(count + 1);
+                if (slot < MAX_SAMPLED_TASKS) {
+                    sampledTasks[(int) slot] = task;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the non-empty histogram buckets as a JSON object mapping the upper bucket bound on the bucket count.
+     */
+    private static String histogramToJson(AtomicLongArray histogram) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < histogram.length(); i++) {
+            long count = histogram.get(i);
+            if (count > 0) {
+                json.append(json.length() > 1 ? ", " : "").append('"').append((1L << i) - 1).append("\": ")
+                        .append(count);
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < ' ') {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private void firstByteTimeSpent(long time) {
+        totalFirstByteTime.add(time);
+        firstByteCount.increment();
+        count(firstByteTimeHistogram, time / 1_000_000);
+    }
+
+    /**
+     * The class designed for collecting the metrics of a single download. The bytes can be counted by several segment
+     * threads at once.
+     *
+     * @author kolokolov
+     */
+    public class TaskMetrics {
+        private final URL url;
+        private final long startTime = System.nanoTime();
+        private final AtomicLong firstByteTime = new AtomicLong();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder waitTime = new LongAdder(); // ns
+        private long endTime;
+        private boolean succeeded;
+
+        private TaskMetrics(URL url) {
+            this.url = url;
+        }
+
+        /**
+         * Counts the bytes read from the web resource and the time the reading thread was stopped by the speed
+         * limiter.
+         *
+         * @param byteCount number of bytes read
+         * @param rateLimitWaitTime time waited for the speed limiter in nanoseconds
+         */
+        public void addBytes(int byteCount, long rateLimitWaitTime) {
+            if (firstByteTime.get() == 0) {
+                long time = Math.max(System.nanoTime() - startTime, 1);
+                if (firstByteTime.compareAndSet(0, time)) {
+                    firstByteTimeSpent(time);
+                }
+            }
+            bytes.add(byteCount);
+            downloadedBytes.add(byteCount);
+            if (rateLimitWaitTime > 0) {
+                waitTime.add(rateLimitWaitTime);
+                DownloadMetrics.this.rateLimitWaitTime.add(rateLimitWaitTime);
+            }
+        }
+
+        /**
+         * Finishes collecting the metrics of the download.
+         *
+         * @param succeeded true if the download has succeeded
+         */
+        public void complete(boolean succeeded) {
+            this.endTime = System.nanoTime();
+            this.succeeded = succeeded;
+            activeDownloads.decrementAndGet();
+            if (succeeded) {
+                completedDownloads.increment();
+                count(throughputHistogram, getSpeed());
+            } else {
+                failedDownloads.increment();
+            }
+            sampleTask(this);
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return time to the first byte in nanoseconds, 0 if no byte has been read
+         */
+        public long getFirstByteTime() {
+            return firstByteTime.get();
+        }
+
+        /**
+         * @return the download time in nanoseconds
+         */
+        public long getTime() {
+            return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+        }
+
+        /**
+         * @return the download speed in kbit/s
+         */
+        public long getSpeed() {
+            return speedOf(getBytes(), getTime());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.kolokolov.fileloader.service;
+
+/**
+ * The management interface of {@link DownloadMetrics} exposed via JMX.
+ *
+ * @author kolokolov
+ */
+public interface DownloadMetricsMBean {
+
+    long getDownloadedBytes();
+
+    long getCompletedDownloads();
+
+    long getFailedDownloads();
+
+    long getCacheHits();
+
+    int getActiveDownloads();
+
+    int getQueuedDownloads();
+
+    int getActiveConnections();
+
+    long getRateLimitWaitMillis();
+
+    long getAverageFirstByteMillis();
+
+    long getAverageSpeed();
+
+    long[] getThroughputHistogram();
+
+    long[] getFirstByteTimeHistogram();
+}
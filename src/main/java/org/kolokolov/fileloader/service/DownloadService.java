@@ -1,37 +1,91 @@
 package org.kolokolov.fileloader.service;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Collection;
-import java.util.HashSet;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 /**
  * The service designed to perform copying data from an URL to a file. It uses {@link ThreadService} to provide each
- * file copying in different thread and {@link TokenBucket} to limit copying speed.
+ * file copying in different thread and {@link SpeedLimits} to limit copying speed. If the web server supports byte
+ * range requests, a file can be copied by several connections at once, each of them storing its own segment, and an
+ * interrupted download is continued from the last offset committed to its {@link DownloadJournal}. A web resource
+ * available from several {@link Mirrors} is downloaded from the fastest of them, and its byte ranges are requested from
+ * another mirror when the current one slows down.
  * 
  * @author kolokolov
  */
 public class DownloadService {
 
-    private int bufferSize = 1024; //bytes
+    /**
+     * The ways of using the content codings of the web resources. A compressed resource can be decoded while it is
+     * being downloaded or stored as it has been received.
+     */
+    public enum Compression {
+        NONE, DECODE, KEEP;
+
+        /**
+         * Returns the compression with the passed name ignoring its case.
+         *
+         * @param name the compression name
+         * @return the compression
+         * @throws IllegalArgumentException if there is no compression with such name
+         */
+        public static Compression of(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private final int JOURNAL_COMMIT_SIZE = 4 * 1024 * 1024; // bytes
+    private final long DEFAULT_BUFFER_MEMORY = 64 * 1024 * 1024; // bytes
+    private final int CHECKSUM_ATTEMPTS = 3;
+    private final int DECODER_BUFFER_SIZE = 64 * 1024; // bytes
+    private final long MIN_HEDGED_RANGE = 1024 * 1024; // bytes
+    private static final int WRITE_QUEUE_SIZE = 4; // buffers
+    private static final int ALLOCATION_CHUNK_SIZE = 1024 * 1024; // bytes
 
     private ThreadService threadService;
-    private TokenBucket tokenBuket;
+    private SpeedLimits speedLimits;
+    private int segments = 1;
+    private FileLinker fileLinker;
+    private HostConnections hostConnections;
+    private BufferPool bufferPool = new BufferPool(DEFAULT_BUFFER_MEMORY);
+    private DownloadMetrics metrics = new DownloadMetrics();
+    private ContentCache contentCache;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.ON_COMPLETE;
+    private Compression compression = Compression.NONE;
+    private boolean hedging;
+    private boolean preallocation;
+    private int smallFileSize = 64 * 1024; // bytes
+    private SmallFileWriter smallFileWriter;
 
     /**
      * Creates an instance of the DownloadService class. If a proper speed limit value is passed than an instance of
@@ -42,18 +96,164 @@ public class DownloadService {
      *            is set.
      */
     public DownloadService(ThreadService threadService, int speedLimit) {
+        this(threadService, new SpeedLimits(speedLimit), 1, new FileLinker(FileLinker.LinkMode.AUTO));
+    }
+
+    /**
+     * Creates an instance of the DownloadService class that downloads every file supporting byte range requests by
+     * several connections at once.
+     * 
+     * @param threadService an instance of the {@link ThreadService} class providing method executing in new thread.
+     * @param speedLimit int value of speed limit in bits/s. If this value is equal or less than 0, than no speed limit
+     *            is set.
+     * @param segments number of connections used to download a single file. If this value is equal or less than 1,
+     *            than every file is downloaded by a single connection.
+     */
+    public DownloadService(ThreadService threadService, int speedLimit, int segments) {
+        this(threadService, new SpeedLimits(speedLimit), segments, new FileLinker(FileLinker.LinkMode.AUTO));
+    }
+
+    /**
+     * Creates an instance of the DownloadService class that makes the additional files of every web resource mapped on
+     * several files with the passed {@link FileLinker}.
+     * 
+     * @param threadService an instance of the {@link ThreadService} class providing method executing in new thread.
+     * @param speedLimit int value of speed limit in bits/s. If this value is equal or less than 0, than no speed limit
+     *            is set.
+     * @param segments number of connections used to download a single file. If this value is equal or less than 1,
+     *            than every file is downloaded by a single connection.
+     * @param fileLinker an instance of the {@link FileLinker} class making the additional files
+     */
+    public DownloadService(ThreadService threadService, int speedLimit, int segments, FileLinker fileLinker) {
+        this(threadService, new SpeedLimits(speedLimit), segments, fileLinker);
+    }
+
+    /**
+     * Creates an instance of the DownloadService class limiting the download speed by the global, host and download
+     * limits.
+     * 
+     * @param threadService an instance of the {@link ThreadService} class providing method executing in new thread.
+     * @param speedLimits an instance of the {@link SpeedLimits} class storing the speed limits
+     * @param segments number of connections used to download a single file. If this value is equal or less than 1,
+     *            than every file is downloaded by a single connection.
+     * @param fileLinker an instance of the {@link FileLinker} class making the additional files
+     */
+    public DownloadService(ThreadService threadService, SpeedLimits speedLimits, int segments,
+            FileLinker fileLinker) {
         this.threadService = threadService;
-        if (speedLimit > 0) {
-            this.tokenBuket = new TokenBucket(speedLimit);
-            this.threadService.startNewDaemon(() -> {
-                try {
-                    this.tokenBuket.fillBucket();
-                } catch (InterruptedException e) {
-                    System.out.printf("Fatal error! Error message %s%n", e.getMessage());
-                    System.exit(1);
-                }
-            });
+        this.speedLimits = speedLimits;
+        if (segments > 1) {
+            this.segments = segments;
         }
+        this.fileLinker = fileLinker;
+    }
+
+    /**
+     * Sets the connection counter limiting the number of connections to a host. Every file segment but the first one
+     * is downloaded by a connection of its own only if the host has a free connection, otherwise the segments share
+     * the connections already taken.
+     * 
+     * @param hostConnections an instance of the {@link HostConnections} class
+     */
+    public void setHostConnections(HostConnections hostConnections) {
+        this.hostConnections = hostConnections;
+    }
+
+    /**
+     * Sets the pool of the copy buffers shared by all the downloads.
+     * 
+     * @param bufferPool an instance of the {@link BufferPool} class
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets the metrics updated by the downloads.
+     * 
+     * @param metrics an instance of the {@link DownloadMetrics} class
+     */
+    public void setMetrics(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the way the downloaded data is forced to the storage device.
+     * 
+     * @param fsyncPolicy an instance of the {@link FsyncPolicy} class
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Sets the way of using the content codings. With compression the web resources are requested with the gzip and
+     * deflate codings accepted, so every file is downloaded by a single connection, as byte ranges of a compressed
+     * resource do not match the ranges of the file.
+     * 
+     * @param compression the way of using the content codings
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets whether the segments of a download are hedged. When no segment of a download is left pending, a connection
+     * that has finished its segment takes over the second half of the largest incomplete segment and requests it from
+     * the next mirror, so a straggling connection does not delay the whole download.
+     * 
+     * @param hedging true if the segments are hedged
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets whether the space of a file of a known length is allocated before downloading. Without preallocation the
+     * file is only extended to its length, which makes a sparse file, so its blocks are allocated as the data arrive
+     * and a file written by several connections may get fragmented. With preallocation the file is filled with zeros
+     * in large chunks first, which costs writing the file twice but reserves its space at once.
+     * 
+     * @param preallocation true if the space of the files is allocated
+     */
+    public void setPreallocation(boolean preallocation) {
+        this.preallocation = preallocation;
+    }
+
+    /**
+     * Sets the size of the files downloaded into memory. A web resource whose length is not greater than that is read
+     * by a single request without a buffer from the pool and is stored by the {@link SmallFileWriter}, as the time of
+     * creating, writing and renaming a small file would otherwise outweigh the time of its download.
+     * 
+     * @param smallFileSize the size in bytes, 0 if no file is downloaded into memory
+     */
+    public void setSmallFileSize(int smallFileSize) {
+        this.smallFileSize = smallFileSize;
+    }
+
+    /**
+     * Returns the file the primary file is downloaded to. It is renamed to the primary file when the download is
+     * complete, so a target file never holds partial data.
+     * 
+     * @param file the primary file
+     * @return the staging file
+     */
+    public static File partFileOf(File file) {
+        return new File(file.getPath() + ".part");
+    }
+
+    /**
+     * Sets the cache of the downloaded web resources. A cached resource is requested with its validators, and if the
+     * server responds that it has not been modified, the files are made out of the cached copy instead of downloading.
+     * 
+     * @param contentCache an instance of the {@link ContentCache} class
+     */
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
     }
 
     /**
@@ -69,34 +269,130 @@ public class DownloadService {
     }
 
     /**
-     * Reads data form a web resource presented with an URL and than stores it in one or several files.
+     * Reads data form a web resource presented with an URL and than stores it in one or several files. The data is
+     * written only to the primary file, that is the first of the files in name order, and the other files are made
+     * out of it by the {@link FileLinker} after the download has been completed. The primary file is written as a
+     * staging file that replaces it atomically when all the data has been received.
      * 
      * @param url an absolute URL of a web resource representing a file
      * @param files Collection of files for storing data read from web resource in
      * @return true if data reading and storing succeeded.
      */
     public boolean downloadFiles(URL url, List<File> files) {
+        return downloadFiles(url, files, null);
+    }
+
+    /**
+     * Reads data form a web resource presented with an URL, stores it in one or several files and verifies its
+     * checksum. The checksum is calculated while the data is being read, so the file is downloaded by a single
+     * connection, and a download with a wrong checksum is repeated up to {@value #CHECKSUM_ATTEMPTS} times. If one of
+     * the files already exists and has the expected checksum, the web resource is not downloaded at all.
+     * 
+     * @param url an absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource, if it is null the data is not verified
+     * @return true if data reading and storing succeeded.
+     */
+    public boolean downloadFiles(URL url, List<File> files, FileChecksum checksum) {
+        return downloadFiles(url, files, checksum, Collections.emptyList());
+    }
+
+    /**
+     * Reads data form a web resource available from several mirrors, stores it in one or several files and verifies
+     * its checksum. The mirrors are probed at once and the data is requested from the fastest of them. A download by a
+     * single connection that fails is repeated from the next mirror. The primary URL identifies the resource in the
+     * cache, in the journal and in the metrics.
+     * 
+     * @param url the primary absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource, if it is null the data is not verified
+     * @param mirrors the other URLs the web resource is available from, may be empty
+     * @return true if data reading and storing succeeded.
+     */
+    public boolean downloadFiles(URL url, List<File> files, FileChecksum checksum, List<URL> mirrors) {
         boolean multipleFiles = files.size() > 1;
         Set<String> fileNames = files.stream().map(File::getName).collect(Collectors.toSet());
-        if (multipleFiles) {
-            System.out.printf("Files %s downloading started%n", fileNames);
-        } else {
-            System.out.printf("File %s downloading started%n", fileNames);
-        }
-        try (InputStream input = url.openStream();
-                BufferedOutputStream output = new BufferedOutputStream(new MultipleFileOutputStream(files))) {
-            for (File file : files) {
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-            }
-
+        DownloadMetrics.TaskMetrics taskMetrics = metrics.startTask(url);
+        try {
             long startTime = System.nanoTime();
 
-            copyBytesIfAllowed(input, output);
+            File primaryFile = Collections.min(files);
+            File verifiedFile = checksum == null ? null : findVerifiedFile(files, checksum);
+            if (verifiedFile != null) {
+                for (File file : files) {
+                    if (!file.equals(verifiedFile)) {
+                        fileLinker.link(verifiedFile, file);
+                    }
+                }
+                if (multipleFiles) {
+                    System.out.printf("Files %s already have the expected checksum%n", fileNames);
+                } else {
+                    System.out.printf("File %s already has the expected checksum%n", fileNames);
+                }
+                taskMetrics.complete(true);
+                return true;
+            }
+            ContentCache.Entry cached = contentCache == null ? null : contentCache.get(url);
+            RemoteResource primaryResource = null;
+            long primaryProbeTime = 0; // ns
+            if (cached != null) {
+                primaryResource = RemoteResource.probe(url, cached.getETag(), cached.getLastModified());
+                primaryProbeTime = System.nanoTime() - startTime;
+            }
+            if (cached != null && takeFromCache(url, cached, primaryResource, files)) {
+                if (multipleFiles) {
+                    System.out.printf("Files %s have not been modified and are taken from the cache%n", fileNames);
+                } else {
+                    System.out.printf("File %s has not been modified and is taken from the cache%n", fileNames);
+                }
+                metrics.cacheHit();
+                taskMetrics.complete(true);
+                return true;
+            }
+            TokenBucket taskBucket = speedLimits.newTaskBucket();
+            if (primaryResource != null && primaryResource.isNotModified()) {
+                primaryResource = null; // the cached copy could not be used, the response has no resource properties
+            }
+            Mirrors sources = mirrors.isEmpty() ? Mirrors.of(url, primaryResource)
+                    : Mirrors.probe(sourcesOf(url, mirrors), primaryResource, primaryProbeTime, threadService);
+            RemoteResource resource = sources.getResource();
+            if (sources.size() > 1) {
+                System.out.printf("Fastest mirror of %s is %s%n", url, sources.getSource(0));
+            }
+            SourceConnections connections = new SourceConnections(hostConnections, url);
+            long fileSize = -1; // bytes
+            if (smallFileSize > 0 && sources.size() == 1 && compression == Compression.NONE
+                    && resource.getContentLength() <= smallFileSize) {
+                SourceConnections.Connection connection = connections.acquire(sources, 0);
+                try {
+                    fileSize = downloadSmallFile(sources.getSource(0), primaryFile, files, taskBucket, taskMetrics,
+                            checksum);
+                } finally {
+                    connections.release(connection);
+                }
+            }
+            if (fileSize < 0) {
+                if (multipleFiles) {
+                    System.out.printf("Files %s downloading started%n", fileNames);
+                } else {
+                    System.out.printf("File %s downloading started%n", fileNames);
+                }
+                File partFile = partFileOf(primaryFile);
+                Mirrors segmentableSources = sources.getSegmentableSources();
+                if (segmentableSources != null && checksum == null && compression == Compression.NONE) {
+                    downloadInSegments(url, segmentableSources, partFile, connections, taskBucket, taskMetrics);
+                } else {
+                    downloadFromMirrors(sources, partFile, connections, taskBucket, taskMetrics, checksum);
+                }
+                fileSize = completePartFile(partFile, primaryFile, files);
+            }
+            // the copy is cached with the validators of the primary URL, a mirror's ones are not valid for it
+            RemoteResource primaryResponse = sources.getResourceOf(url);
+            if (contentCache != null && primaryResponse != null) {
+                storeInCache(url, primaryResponse, primaryFile);
+            }
 
             long downloadTime = System.nanoTime() - startTime; // ms
-            long fileSize = FileUtils.sizeOf(files.get(0)); // bytes
             long downloadSpeed = 8 * fileSize * 1_000_000_000 / downloadTime / 1024; // kbit/s
             String displayFileSize = FileUtils.byteCountToDisplaySize(fileSize); // in human readable format
             if (multipleFiles) {
@@ -106,6 +402,7 @@ public class DownloadService {
                 System.out.printf("File %s (%s) has been downloaded at %d kbit/s%n", fileNames, displayFileSize,
                         downloadSpeed);
             }
+            taskMetrics.complete(true);
             return true;
         } catch (IOException | InterruptedException e) {
             if (multipleFiles) {
@@ -114,143 +411,844 @@ public class DownloadService {
                 System.out.printf("File %s downloading error%n", fileNames);
             }
             System.out.printf("Error message: %s%n", e.getMessage());
+            taskMetrics.complete(false);
             return false;
         }
     }
 
     /**
-     * Reads data from an input stream and then writes it to an output stream if token bucket exists and allows this
-     * action.
+     * Renames the downloaded part file to the primary file and makes the other files out of it.
      * 
-     * @param souce an instance of the InputStream
-     * @param target an instance of the OutputStream
+     * @param partFile the file the data has been downloaded to
+     * @param primaryFile the file the part file is renamed to
+     * @param files Collection of files for storing data read from web resource in
+     * @return the size of the file in bytes
      * @throws IOException
-     * @throws InterruptedException
      */
-    private void copyBytesIfAllowed(InputStream source, OutputStream target) throws IOException, InterruptedException {
-        int count;
-        byte[] buffer = new byte[bufferSize];
-        while ((count = source.read(buffer)) != -1) {
-            if (tokenBuket != null) {
-                tokenBuket.emptyBucket(count);
+    private long completePartFile(File partFile, File primaryFile, List<File> files) throws IOException {
+        Files.move(partFile.toPath(), primaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        for (File file : files) {
+            if (!file.equals(primaryFile)) {
+                fileLinker.link(primaryFile, file);
             }
-            target.write(buffer, 0, count);
         }
-        target.flush();
+        return FileUtils.sizeOf(primaryFile);
     }
-    
-    public void closeDownloadThreads() {
-        threadService.shutdownDownloadThreadPool();
+
+    private static List<URL> sourcesOf(URL url, List<URL> mirrors) {
+        List<URL> sources = new ArrayList<>();
+        sources.add(url);
+        sources.addAll(mirrors);
+        return sources;
     }
 
     /**
-     * The class designed for download speed limiting. The fillBucket() method fills the token bucket over determinate
-     * periods with values depending on download speed limit within a separate thread. The emptyBucket() method empties
-     * the token bucket by value passed as a parameter only if the token bucket is greater or equal to this value.
-     * Otherwise the method stops its thread until the token bucket is full enough. It is supposed to be used within a
-     * method that reads data from input stream, thus limiting number of data readings depending on set speed limit
-     * value.
+     * Looks for a file that already exists and has the expected checksum.
      * 
-     * @author kolokolov
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource
+     * @return the file or null if no file has the expected checksum
+     * @throws IOException
      */
-    private class TokenBucket {
-        private final int BUCKET_FILLING_DELAY = 2; // ms
-        private final int SPEED_LIMIT;
-        
-        private int bucket;
+    private File findVerifiedFile(List<File> files, FileChecksum checksum) throws IOException {
+        for (File file : files) {
+            if (checksum.matches(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
 
-        private final Lock bucketLock = new ReentrantLock();
-        private final Condition enoughTokens = bucketLock.newCondition();
-        private final Condition fillingAllowed = bucketLock.newCondition();
+    /**
+     * Makes the files out of the cached copy of the web resource if the conditional request has shown that the
+     * resource has not been modified. Otherwise the copy is removed from the cache before the files are downloaded
+     * again.
+     * 
+     * @param url an absolute URL of a web resource representing a file
+     * @param cached the cached copy of the web resource
+     * @param resource the response to the conditional request with the validators of the cached copy
+     * @param files Collection of files for storing data read from web resource in
+     * @return true if the files have been made out of the cached copy
+     */
+    private boolean takeFromCache(URL url, ContentCache.Entry cached, RemoteResource resource, List<File> files) {
+        if (resource.isNotModified()) {
+            try {
+                for (File file : files) {
+                    contentCache.materialize(cached, file);
+                }
+                return true;
+            } catch (IOException ioe) {
+                System.out.printf("Cached copy of %s can not be used: %s%n", url, ioe.getMessage());
+            }
+        }
+        contentCache.remove(url);
+        return false;
+    }
 
-        public TokenBucket(int speedLimit) {
-            this.SPEED_LIMIT = speedLimit;    
+    /**
+     * Stores the downloaded file in the cache. A failure is reported and does not fail the download.
+     * 
+     * @param url an absolute URL of a web resource representing a file
+     * @param resource the properties of the web resource
+     * @param file the downloaded file
+     */
+    private void storeInCache(URL url, RemoteResource resource, File file) {
+        try {
+            contentCache.put(url, resource, file);
+        } catch (IOException ioe) {
+            System.out.printf("File %s can not be stored in the cache: %s%n", file.getName(), ioe.getMessage());
         }
+    }
 
-        public void fillBucket() throws InterruptedException {
-            final int BUCKET_FILLING_STEP = SPEED_LIMIT * BUCKET_FILLING_DELAY / 1000 / 8; // bytes
-            bufferSize = BUCKET_FILLING_STEP / 5;
-            bucket = BUCKET_FILLING_STEP;
-            
-            while (true) {
-                bucketLock.lock();
+    /**
+     * Downloads a small web resource into memory and hands it over to the {@link SmallFileWriter}, so the files are
+     * written with a single write each and their staging files are renamed in batches. If the length of the resource
+     * is unknown and the resource turns out to be larger than the small file size, the bytes read are written to the
+     * part file and the rest of the resource is copied to it from the same connection. If the checksum is set, the
+     * download is repeated until the checksum matches or the attempts are over.
+     * 
+     * @param url the absolute URL of the source of a web resource representing a file
+     * @param primaryFile the file the data is written to
+     * @param files Collection of files for storing data read from web resource in
+     * @param taskBucket the bucket of the speed limit of the download, may be null
+     * @param taskMetrics the metrics of the download
+     * @param checksum the expected checksum of the web resource, may be null
+     * @return the size of the file in bytes or -1 if the length of the resource is larger than the small file size
+     * @throws IOException if the data is incomplete, its checksum does not match or it can not be stored
+     * @throws InterruptedException
+     */
+    private long downloadSmallFile(URL url, File primaryFile, List<File> files, TokenBucket taskBucket,
+            DownloadMetrics.TaskMetrics taskMetrics, FileChecksum checksum) throws IOException, InterruptedException {
+        SpeedLimiter speedLimiter = speedLimits.limiterFor(url, taskBucket);
+        for (int attempt = 1;; attempt++) {
+            FileChecksum.Calculator calculator = checksum == null ? null : checksum.newCalculator();
+            byte[] data;
+            int count = 0;
+            long spilledCount = -1;
+            metrics.connectionOpened();
+            try {
+                URLConnection connection = url.openConnection();
+                long length = connection.getContentLengthLong();
+                try (InputStream input = connection.getInputStream()) {
+                    if (length > smallFileSize) {
+                        return -1;
+                    }
+                    data = new byte[length >= 0 ? (int) length : smallFileSize + 1];
+                    int read;
+                    while (count < data.length && (read = input.read(data, count, data.length - count)) != -1) {
+                        taskMetrics.addBytes(read, speedLimiter.emptyBuckets(read));
+                        count += read;
+                    }
+                    if (length < 0 && count > smallFileSize) {
+                        spilledCount = spillToPartFile(input, data, count, partFileOf(primaryFile), speedLimiter,
+                                taskMetrics, calculator);
+                    }
+                }
+                if (length >= 0 && count != length) {
+                    throw new IOException(String.format("Only %d of %d bytes of %s have been received", count,
+                            length, url));
+                }
+            } finally {
+                metrics.connectionClosed();
+            }
+            if (calculator != null && spilledCount < 0) {
+                calculator.update(data, 0, count);
+            }
+            if (calculator == null || calculator.matches()) {
+                if (spilledCount >= 0) {
+                    return completePartFile(partFileOf(primaryFile), primaryFile, files);
+                }
+                try {
+                    smallFileWriter().write(primaryFile, files, data, count).get();
+                } catch (ExecutionException ee) {
+                    throw new IOException(ee.getCause().getMessage(), ee.getCause());
+                }
+                return count;
+            }
+            if (attempt == CHECKSUM_ATTEMPTS) {
+                throw new IOException(String.format("Checksum of %s does not match %s", url, checksum));
+            }
+            System.out.printf("Checksum of %s does not match, downloading again%n", url);
+        }
+    }
+
+    /**
+     * Writes the bytes of a resource read into memory to the part file and copies the rest of the resource to it from
+     * the same stream.
+     * 
+     * @param input the stream of the resource the bytes have been read from
+     * @param data the bytes read
+     * @param count number of the bytes read
+     * @param partFile the file the resource is written to
+     * @param speedLimiter the speed limiter of the download
+     * @param taskMetrics the metrics of the download
+     * @param calculator the calculator of the checksum of the resource, may be null
+     * @return the size of the resource in bytes
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private long spillToPartFile(InputStream input, byte[] data, int count, File partFile, SpeedLimiter speedLimiter,
+            DownloadMetrics.TaskMetrics taskMetrics, FileChecksum.Calculator calculator)
+            throws IOException, InterruptedException {
+        if (calculator != null) {
+            calculator.update(data, 0, count);
+        }
+        long total = count;
+        try (InputStream rest = calculator == null ? input : calculator.wrap(input);
+                FileChannelOutputStream output = new FileChannelOutputStream(partFile);
+                BufferPool.StreamBuffer buffer = bufferPool.newStreamBuffer(speedLimiter.getSpeedLimit())) {
+            output.write(data, 0, count);
+            total += copyBytesIfAllowed(rest, output, Long.MAX_VALUE, speedLimiter, buffer, taskMetrics);
+            if (fsyncPolicy.syncsOnComplete() || fsyncPolicy.getInterval() > 0) {
+                output.sync();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the writer of the small files, starting its thread on the first call.
+     */
+    private synchronized SmallFileWriter smallFileWriter() {
+        if (smallFileWriter == null) {
+            smallFileWriter = new SmallFileWriter(fileLinker, fsyncPolicy);
+            threadService.startNewDaemon(smallFileWriter);
+        }
+        return smallFileWriter;
+    }
+
+    /**
+     * Copies the whole web resource to the file using a single connection, starting from the fastest mirror whose host
+     * has a free connection. If the download fails, it is repeated from the next mirror until every mirror has been
+     * tried.
+     * 
+     * @param sources the mirrors of the web resource
+     * @param file a file for storing data read from web resource in
+     * @param connections the connections of the download
+     * @param taskBucket the bucket of the speed limit of the download, may be null
+     * @param taskMetrics the metrics of the download
+     * @param checksum the expected checksum of the web resource, may be null
+     * @throws IOException if the download from the last mirror has failed
+     * @throws InterruptedException
+     */
+    private void downloadFromMirrors(Mirrors sources, File file, SourceConnections connections,
+            TokenBucket taskBucket, DownloadMetrics.TaskMetrics taskMetrics, FileChecksum checksum)
+            throws IOException, InterruptedException {
+        SourceConnections.Connection connection = connections.acquire(sources, 0);
+        try {
+            for (int attempt = 1;; attempt++) {
+                URL source = sources.getSource(connection.getSource());
                 try {
-                    while (bucket >= BUCKET_FILLING_STEP) {
-                        fillingAllowed.await();
+                    downloadInSingleStream(source, file, speedLimits.limiterFor(source, taskBucket), taskMetrics,
+                            checksum);
+                    return;
+                } catch (IOException ioe) {
+                    if (attempt == sources.size()) {
+                        throw ioe;
                     }
-                    bucket += BUCKET_FILLING_STEP;
-                    enoughTokens.signalAll();
-                } finally {
-                    bucketLock.unlock();
-                    Thread.sleep(BUCKET_FILLING_DELAY);
+                    connection = connections.switchTo(sources, connection, sources.next(connection.getSource()));
+                    System.out.printf("Downloading from %s failed (%s), switching to %s%n", source,
+                            ioe.getMessage(), sources.getSource(connection.getSource()));
                 }
             }
+        } finally {
+            connections.release(connection);
         }
+    }
 
-        public void emptyBucket(int byteCount) throws InterruptedException {
-            bucketLock.lock();
-            fillingAllowed.signal();
+    /**
+     * Copies the whole web resource to the file using a single connection. If the length of the resource is known, the
+     * file is extended to it beforehand. The file is synchronized according to the {@link FsyncPolicy}. If the checksum
+     * is set, it is calculated while the data is being copied and the download is repeated until the checksum matches
+     * or the attempts are over. A compressed response is decoded while being copied unless the compressed form is
+     * kept, and the speed limit is applied to the bytes received rather than to the decoded ones.
+     * 
+     * @param url an absolute URL of a web resource representing a file
+     * @param file a file for storing data read from web resource in
+     * @param speedLimiter the speed limiter of the download
+     * @param taskMetrics the metrics of the download
+     * @param checksum the expected checksum of the web resource, may be null
+     * @throws IOException if the data is incomplete or its checksum does not match
+     * @throws InterruptedException
+     */
+    private void downloadInSingleStream(URL url, File file, SpeedLimiter speedLimiter,
+            DownloadMetrics.TaskMetrics taskMetrics, FileChecksum checksum) throws IOException, InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            FileChecksum.Calculator calculator = checksum == null ? null : checksum.newCalculator();
+            metrics.connectionOpened();
             try {
-                while (bucket < byteCount) {
-                    enoughTokens.await();
+                URLConnection connection = url.openConnection();
+                if (compression != Compression.NONE) {
+                    connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+                }
+                long length = connection.getContentLengthLong();
+                String encoding = compression == Compression.DECODE ? connection.getContentEncoding() : null;
+                boolean decoding = "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)
+                        || "deflate".equalsIgnoreCase(encoding);
+                long count = 0;
+                try (WireInputStream wire = new WireInputStream(connection.getInputStream());
+                        InputStream decoded = decoding ? decoderOf(wire, encoding) : wire;
+                        InputStream input = calculator == null ? decoded : calculator.wrap(decoded);
+                        FileChannelOutputStream output = new FileChannelOutputStream(file);
+                        BufferPool.StreamBuffer buffer = bufferPool.newStreamBuffer(speedLimiter.getSpeedLimit())) {
+                    if (!decoding) {
+                        output.extendTo(length, preallocation);
+                    }
+                    long syncInterval = fsyncPolicy.getInterval() > 0 ? fsyncPolicy.getInterval() : Long.MAX_VALUE;
+                    while (copyBytesIfAllowed(input, output, syncInterval, speedLimiter, buffer, taskMetrics,
+                            decoding ? wire : null) > 0) {
+                        if (fsyncPolicy.getInterval() > 0) {
+                            output.sync();
+                        }
+                    }
+                    if (fsyncPolicy.syncsOnComplete()) {
+                        output.sync();
+                    }
+                    count = wire.getByteCount();
+                }
+                if (length >= 0 && count != length) {
+                    throw new IOException(String.format("Only %d of %d bytes of %s have been received", count,
+                            length, url));
                 }
-                bucket -= byteCount;
-                fillingAllowed.signal();
             } finally {
-                bucketLock.unlock();
+                metrics.connectionClosed();
+            }
+            if (calculator == null || calculator.matches()) {
+                return;
+            }
+            if (attempt == CHECKSUM_ATTEMPTS) {
+                throw new IOException(String.format("Checksum of %s does not match %s", url, checksum));
+            }
+            System.out.printf("Checksum of %s does not match, downloading again%n", url);
+        }
+    }
+
+    /**
+     * Splits the web resource into byte ranges and copies each of them to the file within a separate thread. The
+     * file is extended to the resource length beforehand, so every range is written at its own offset. The progress
+     * of every range is committed to a {@link DownloadJournal}, so if the file has been partially downloaded by an
+     * earlier run, only the remaining bytes of every range are requested. The If-Range validator is sent only if the
+     * resource has a single source, as the mirrors do not share their validators. A thread is started for every
+     * pending range, and the threads that get no connection leave the ranges to the others.
+     * 
+     * @param url the primary absolute URL of a web resource representing a file
+     * @param sources the mirrors of the web resource supporting byte ranges
+     * @param file a file for storing data read from web resource in
+     * @param connections the connections of the download
+     * @param taskBucket the bucket of the speed limit of the download shared by all the segments, may be null
+     * @param taskMetrics the metrics of the download
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void downloadInSegments(URL url, Mirrors sources, File file, SourceConnections connections,
+            TokenBucket taskBucket, DownloadMetrics.TaskMetrics taskMetrics) throws IOException, InterruptedException {
+        RemoteResource resource = sources.getResource();
+        String validator = sources.size() == 1 ? resource.getRangeValidator() : null;
+        long length = resource.getContentLength();
+        File journalFile = DownloadJournal.journalFileOf(url, file.getAbsoluteFile().getParentFile());
+        DownloadJournal journal = DownloadJournal.open(journalFile, url, resource, segments);
+        if (journal.isResumed() && file.length() == length) {
+            System.out.printf("Downloading from %s resumed at %s%n", url,
+                    FileUtils.byteCountToDisplaySize(journal.getCommittedBytes()));
+        } else {
+            journal = DownloadJournal.create(journalFile, url, resource, segments);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                if (randomAccessFile.length() > length) {
+                    randomAccessFile.setLength(length);
+                }
+                extendTo(randomAccessFile.getChannel(), length, preallocation);
+            }
+        }
+        journal.save();
+
+        DownloadJournal segmentJournal = journal;
+        Queue<DownloadJournal.Segment> pendingSegments = new ConcurrentLinkedQueue<>();
+        journal.getSegments().stream().filter(segment -> !segment.isComplete()).forEach(pendingSegments::add);
+        int threads = Math.max(pendingSegments.size(), 1);
+        List<Future<Long>> segmentReports = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                segmentReports.add(threadService.executeSegment(() -> downloadSegments(sources, file, validator,
+                        segmentJournal, pendingSegments, connections, taskBucket, taskMetrics)));
+            }
+            for (Future<Long> segmentReport : segmentReports) {
+                segmentReport.get();
+            }
+        } catch (ExecutionException ee) {
+            segmentReports.forEach(segmentReport -> segmentReport.cancel(true));
+            Throwable cause = ee.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException ie) {
+            segmentReports.forEach(segmentReport -> segmentReport.cancel(true));
+            throw ie;
+        }
+        journal.delete();
+    }
+
+    /**
+     * Extends the file to the passed length by positional writes, so the position of the channel is not moved. Unless
+     * the space is allocated, only the last byte is written, which sets the file length and leaves a sparse file with
+     * no blocks reserved. Otherwise the file is filled with zeros from its current end in chunks of
+     * {@value #ALLOCATION_CHUNK_SIZE} bytes.
+     *
+     * @param fileChannel the channel of the file
+     * @param length the file length or -1 if it is unknown
+     * @param allocating true if the space of the file is allocated by writing zeros
+     * @throws IOException
+     */
+    private static void extendTo(FileChannel fileChannel, long length, boolean allocating) throws IOException {
+        long position = fileChannel.size();
+        if (length <= position) {
+            return;
+        }
+        if (!allocating) {
+            fileChannel.write(ByteBuffer.allocate(1), length - 1);
+            return;
+        }
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ALLOCATION_CHUNK_SIZE, length - position));
+        while (position < length) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), length - position));
+            position += fileChannel.write(zeros, position);
+        }
+    }
+
+    /**
+     * Downloads the pending segments one by one until none of them is left. Several threads can download the segments
+     * of the same queue at once, each of them using a connection of its own. Before taking a segment the thread takes
+     * a connection to the host of its mirror, or of the next mirror whose host has a free one, and returns if it gets
+     * none. A segment whose mirror has degraded or failed is continued from the next mirror that can be connected to.
+     * If hedging is on, the thread then takes over the tail of the largest incomplete segment and downloads it from
+     * the mirror following its current one.
+     * 
+     * @param sources the mirrors of the web resource
+     * @param file a file for storing data read from web resource in
+     * @param validator the value of the If-Range header, may be null
+     * @param journal the journal of the download
+     * @param pendingSegments the queue of the segments to be downloaded
+     * @param connections the connections of the download
+     * @param taskBucket the bucket of the speed limit of the download, may be null
+     * @param taskMetrics the metrics of the download
+     * @return number of bytes committed
+     * @throws IOException if no mirror returned a requested range
+     * @throws InterruptedException
+     */
+    private long downloadSegments(Mirrors sources, File file, String validator, DownloadJournal journal,
+            Queue<DownloadJournal.Segment> pendingSegments, SourceConnections connections, TokenBucket taskBucket,
+            DownloadMetrics.TaskMetrics taskMetrics) throws IOException, InterruptedException {
+        long count = 0;
+        int source = 0;
+        while (true) {
+            SourceConnections.Connection connection = connections.acquire(sources, source);
+            if (connection == null) {
+                return count;
+            }
+            try {
+                source = connection.getSource();
+                DownloadJournal.Segment segment = pendingSegments.poll();
+                if (segment == null && hedging) {
+                    segment = journal.splitLargestSegment(MIN_HEDGED_RANGE);
+                    if (segment != null) {
+                        connection = connections.switchTo(sources, connection, sources.next(source));
+                        source = connection.getSource();
+                        System.out.printf("Byte range %d-%d is hedged from %s%n", segment.getFirst(),
+                                segment.getLast(), sources.getSource(source));
+                    }
+                }
+                if (segment == null) {
+                    return count;
+                }
+                long first = segment.getPosition();
+                int failures = 0;
+                while (!segment.isComplete()) {
+                    int current = source;
+                    try {
+                        if (downloadSegment(sources, current, file, validator, journal, segment,
+                                speedLimits.limiterFor(sources.getSource(current), taskBucket), taskMetrics)) {
+                            connection = connections.switchTo(sources, connection, sources.next(current));
+                            source = connection.getSource();
+                            if (source != current) {
+                                System.out.printf("Mirror %s has slowed down, switching to %s%n",
+                                        sources.getSource(current), sources.getSource(source));
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        if (++failures >= sources.size()) {
+                            throw ioe;
+                        }
+                        connection = connections.switchTo(sources, connection, sources.next(current));
+                        source = connection.getSource();
+                        System.out.printf("Downloading from %s failed (%s), switching to %s%n",
+                                sources.getSource(current), ioe.getMessage(), sources.getSource(source));
+                    }
+                }
+                count += segment.getPosition() - first;
+            } finally {
+                connections.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Requests the remaining bytes of a segment of the web resource and writes them to the file starting at the
+     * segment position. Every {@value #JOURNAL_COMMIT_SIZE} bytes, or every sync interval of the {@link FsyncPolicy}
+     * if it is set, the file is synchronized with the storage device and the new segment position is committed to the
+     * journal. The speed of every committed part is reported to the mirrors, and the download stops as soon as the
+     * mirror has degraded.
+     * 
+     * @param sources the mirrors of the web resource
+     * @param source the index of the mirror the segment is requested from
+     * @param file a file for storing data read from web resource in
+     * @param validator the value of the If-Range header, may be null
+     * @param journal the journal of the download
+     * @param segment the segment to be downloaded
+     * @param speedLimiter the speed limiter of the download
+     * @param taskMetrics the metrics of the download
+     * @return true if the segment is incomplete because the mirror has degraded
+     * @throws IOException if the server did not return the requested range
+     * @throws InterruptedException
+     */
+    private boolean downloadSegment(Mirrors sources, int source, File file, String validator,
+            DownloadJournal journal, DownloadJournal.Segment segment, SpeedLimiter speedLimiter,
+            DownloadMetrics.TaskMetrics taskMetrics) throws IOException, InterruptedException {
+        metrics.connectionOpened();
+        try {
+            URL url = sources.getSource(source);
+            long first = segment.getPosition();
+            long last = segment.getLast();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Range", String.format("bytes=%d-%d", first, last));
+            if (validator != null) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new IOException(
+                        String.format("Server did not return byte range %d-%d of %s", first, last, url));
+            }
+            long commitSize = fsyncPolicy.getInterval() > 0 ? fsyncPolicy.getInterval() : JOURNAL_COMMIT_SIZE;
+            try (InputStream input = connection.getInputStream();
+                    FileChannelOutputStream output = new FileChannelOutputStream(file, first);
+                    BufferPool.StreamBuffer buffer = bufferPool.newStreamBuffer(speedLimiter.getSpeedLimit())) {
+                long count;
+                long startTime = System.nanoTime();
+                while (!segment.isComplete()
+                        && (count = copyBytesIfAllowed(input, output, Math.min(commitSize,
+                                segment.getRemaining()), speedLimiter, buffer, taskMetrics)) > 0) {
+                    output.sync();
+                    journal.commit(segment, count);
+                    long now = System.nanoTime();
+                    long speed = count * 1_000_000_000L / Math.max(now - startTime, 1);
+                    startTime = now;
+                    if (!segment.isComplete() && sources.isDegraded(source, speed)) {
+                        return true;
+                    }
+                }
+                if (!segment.isComplete()) {
+                    throw new IOException(String.format("Byte range %d-%d of %s is incomplete", first, last, url));
+                }
+                return false;
+            }
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Reads data from an input stream and then writes it to an output stream if the token buckets of the speed limiter
+     * allow this action. The method returns when all the data copied has been written.
+     * 
+     * @param souce an instance of the InputStream
+     * @param target the stream writing to the file
+     * @param limit maximum number of bytes to be copied
+     * @param speedLimiter the speed limiter of the download
+     * @param buffer the buffer of the stream adapting its size to the stream speed
+     * @param taskMetrics the metrics of the download counting the bytes read and the time waited
+     * @return number of bytes copied
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private long copyBytesIfAllowed(InputStream source, FileChannelOutputStream target, long limit,
+            SpeedLimiter speedLimiter,
+            BufferPool.StreamBuffer buffer, DownloadMetrics.TaskMetrics taskMetrics)
+            throws IOException, InterruptedException {
+        return copyBytesIfAllowed(source, target, limit, speedLimiter, buffer, taskMetrics, null);
+    }
+
+    /**
+     * Reads decoded data from an input stream and then writes it to an output stream if the token buckets of the
+     * speed limiter allow receiving the bytes the data has been decoded from. The method returns when all the data
+     * copied has been written.
+     * 
+     * @param souce an instance of the InputStream
+     * @param target the stream writing to the file
+     * @param limit maximum number of bytes to be copied
+     * @param speedLimiter the speed limiter of the download
+     * @param buffer the buffer of the stream adapting its size to the stream speed
+     * @param taskMetrics the metrics of the download counting the bytes received and the time waited
+     * @param wire the stream counting the bytes received, or null if the data is not decoded
+     * @return number of bytes copied
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private long copyBytesIfAllowed(InputStream source, FileChannelOutputStream target, long limit,
+            SpeedLimiter speedLimiter,
+            BufferPool.StreamBuffer buffer, DownloadMetrics.TaskMetrics taskMetrics, WireInputStream wire)
+            throws IOException, InterruptedException {
+        int count;
+        long total = 0;
+        while (total < limit && (count = source.read(buffer.array(), 0,
+                (int) Math.min(buffer.array().length, limit - total))) != -1) {
+            int received = wire == null ? count : wire.takeReceived();
+            taskMetrics.addBytes(received, speedLimiter.emptyBuckets(received));
+            target.write(buffer, count);
+            total += count;
+            buffer.update(count);
+        }
+        if (wire != null && total < limit) {
+            while (wire.read(buffer.array()) != -1) {
+                // the bytes following the compressed data are received but not decoded
             }
+            int received = wire.takeReceived();
+            taskMetrics.addBytes(received, speedLimiter.emptyBuckets(received));
+        }
+        target.flush();
+        return total;
+    }
+    
+    /**
+     * Returns the stream decoding the data compressed with the passed content coding.
+     * 
+     * @param input the stream of the compressed data
+     * @param encoding the content coding, gzip or deflate
+     * @return an instance of the InputStream
+     * @throws IOException
+     */
+    private InputStream decoderOf(InputStream input, String encoding) throws IOException {
+        if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(input, new Inflater(), DECODER_BUFFER_SIZE);
+        }
+        return new GZIPInputStream(input, DECODER_BUFFER_SIZE);
+    }
+
+    public void closeDownloadThreads() {
+        threadService.shutdownDownloadThreadPool();
+    }
+
+    /**
+     * The class designed for counting the bytes received from a web resource whose data is decoded while being read.
+     * 
+     * @author kolokolov
+     */
+    private static class WireInputStream extends CountingInputStream {
+        private long takenCount;
+
+        public WireInputStream(InputStream input) {
+            super(input);
+        }
+
+        /**
+         * @return number of bytes received since the previous call
+         */
+        public int takeReceived() {
+            long received = getByteCount() - takenCount;
+            takenCount += received;
+            return (int) received;
         }
     }
 
     /**
-     * The class designed for providing data storing to several files simultaneously.
+     * The class designed for providing data storing to a file through a channel, either from its beginning or from a
+     * determinate position. If the {@link ThreadService} has write threads, the filled buffers of a stream are handed
+     * over to them through a queue of up to {@value #WRITE_QUEUE_SIZE} buffers and are written in order by one write
+     * thread at a time, while the download thread goes on reading into a new buffer. The download thread waits only
+     * when the queue is full and when the data is flushed, synchronized or the stream is closed.
      * 
      * @author kolokolov
      */
-    private class MultipleFileOutputStream extends OutputStream {
+    private class FileChannelOutputStream extends OutputStream {
 
-        private final Set<FileOutputStream> fileOutputStreams = new HashSet<>();
+        private final FileChannel fileChannel;
+        private final boolean pipelined = threadService.hasWriteThreads();
+        private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        private boolean draining;
+        private volatile IOException writeError;
 
         /**
-         * Creates an instance of the class using a collection of File type objects.
+         * Creates an instance of the class writing to the file from its beginning. The file is truncated.
          * 
-         * @param files a Collection of {@link File} type object
-         * @throws FileNotFoundException
+         * @param file a {@link File} type object
+         * @throws IOException
          */
-        public MultipleFileOutputStream(Collection<File> files) throws FileNotFoundException {
-            for (File file : files) {
-                if (file != null) {
-                    this.fileOutputStreams.add(new FileOutputStream(file));
-                }
-            }
+        public FileChannelOutputStream(File file) throws IOException {
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Creates an instance of the class writing to the file from the passed position. The file is not truncated.
+         * 
+         * @param file a {@link File} type object
+         * @param position a file position the data is written from
+         * @throws IOException
+         */
+        public FileChannelOutputStream(File file, long position) throws IOException {
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.fileChannel.position(position);
         }
 
         @Override
         public void write(int b) throws IOException {
-            for (FileOutputStream fos : fileOutputStreams) {
-                fos.write(b);
-            }
+            write(new byte[] { (byte) b }, 0, 1);
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            for (FileOutputStream fos : fileOutputStreams) {
-                fos.write(b, off, len);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(b, off, len);
+            while (byteBuffer.hasRemaining()) {
+                fileChannel.write(byteBuffer);
             }
         }
 
+        /**
+         * Writes the data of the stream buffer. If the stream is pipelined, the buffer is handed over to a write thread
+         * and the stream buffer takes a new one. If the pool has no buffer to spare at once, the data is written by the
+         * download thread after the queued buffers, as waiting for a buffer could wait for the ones queued by the
+         * stream. If the write threads do not take the queue, it is written by the download thread as well.
+         * 
+         * @param buffer the buffer of the stream
+         * @param length number of bytes to be written
+         * @throws IOException if an earlier write has failed
+         * @throws InterruptedException
+         */
+        public void write(BufferPool.StreamBuffer buffer, int length) throws IOException, InterruptedException {
+            if (!pipelined) {
+                write(buffer.array(), 0, length);
+                return;
+            }
+            synchronized (this) {
+                while (pendingWrites.size() >= WRITE_QUEUE_SIZE && writeError == null) {
+                    wait();
+                }
+                if (writeError != null) {
+                    throw writeError;
+                }
+            }
+            byte[] data = buffer.handOff();
+            if (data == null) {
+                flush();
+                write(buffer.array(), 0, length);
+                return;
+            }
+            boolean startDraining;
+            synchronized (this) {
+                pendingWrites.add(new PendingWrite(data, length));
+                startDraining = !draining;
+                draining = true;
+            }
+            if (startDraining) {
+                try {
+                    threadService.executeWrite(this::drain);
+                } catch (RejectedExecutionException ree) {
+                    drain();
+                }
+            }
+        }
+
+        /**
+         * Writes the queued buffers until the queue is empty and returns them to the pool. It is run by a write thread.
+         */
+        private void drain() {
+            while (true) {
+                PendingWrite pendingWrite;
+                synchronized (this) {
+                    pendingWrite = pendingWrites.peek();
+                    if (pendingWrite == null) {
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    if (writeError == null) {
+                        write(pendingWrite.data, 0, pendingWrite.length);
+                    }
+                } catch (IOException ioe) {
+                    writeError = ioe;
+                } finally {
+                    bufferPool.release(pendingWrite.data);
+                    synchronized (this) {
+                        pendingWrites.poll();
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until all the queued buffers have been written.
+         * 
+         * @throws IOException if a write has failed
+         */
         @Override
-        public void flush() throws IOException {
-            for (FileOutputStream fos : fileOutputStreams) {
-                fos.flush();
+        public synchronized void flush() throws IOException {
+            try {
+                while (draining) {
+                    wait();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the data to be written");
+            }
+            if (writeError != null) {
+                throw writeError;
             }
         }
 
+        /**
+         * Extends the file to the passed length without moving the write position, see
+         * {@link DownloadService#extendTo(FileChannel, long, boolean)}.
+         * 
+         * @param length the file length or -1 if it is unknown
+         * @param allocating true if the space of the file is allocated by writing zeros
+         * @throws IOException
+         */
+        public void extendTo(long length, boolean allocating) throws IOException {
+            DownloadService.extendTo(fileChannel, length, allocating);
+        }
+
+        /**
+         * Forces all the data written to the file to be stored on the storage device.
+         * 
+         * @throws IOException
+         */
+        public void sync() throws IOException {
+            flush();
+            fileChannel.force(false);
+        }
+
         @Override
         public void close() throws IOException {
-            for (FileOutputStream fos : fileOutputStreams) {
-                fos.close();
+            try {
+                flush();
+            } finally {
+                fileChannel.close();
             }
         }
     }
+
+    /**
+     * The class designed for holding a buffer queued for writing.
+     * 
+     * @author kolokolov
+     */
+    private static class PendingWrite {
+        private final byte[] data;
+        private final int length;
+
+        PendingWrite(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
 }
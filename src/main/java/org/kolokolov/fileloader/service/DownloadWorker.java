@@ -0,0 +1,136 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The class designed for downloading the tasks handed out by the {@link WorkCoordinator}. The worker keeps asking
+ * the coordinator for tasks while it has fewer running downloads than its concurrency, downloads every task with the
+ * {@link HostScheduler} of its process into its own output folder and reports the result as soon as the download
+ * is finished.
+ *
+ * @author kolokolov
+ */
+public class DownloadWorker {
+
+    private static final long WAIT_TIME = 500; // ms
+
+    private final CoordinatorClient client;
+    private final HostScheduler hostScheduler;
+    private final File outputFolder;
+    private final int concurrency;
+
+    private int completed;
+    private int failed;
+    private long downloadedSize;
+
+    /**
+     * Creates an instance of the DownloadWorker class.
+     *
+     * @param client the connection to the coordinator
+     * @param hostScheduler the scheduler starting the downloads
+     * @param outputFolder the folder the files are stored in
+     * @param concurrency maximum number of running downloads
+     */
+    public DownloadWorker(CoordinatorClient client, HostScheduler hostScheduler, File outputFolder,
+            int concurrency) {
+        this.client = client;
+        this.hostScheduler = hostScheduler;
+        this.outputFolder = outputFolder;
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Downloads the tasks until the coordinator reports that all of them have been finished.
+     *
+     * @throws IOException if the connection to the coordinator has failed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void run() throws IOException, InterruptedException {
+        Semaphore slots = new Semaphore(concurrency);
+        try {
+            while (true) {
+                slots.acquire();
+                WorkItem item = client.next();
+                if (item == null) {
+                    slots.release();
+                    if (client.isDone()) {
+                        return;
+                    }
+                    Thread.sleep(WAIT_TIME);
+                    continue;
+                }
+                download(item, slots);
+            }
+        } finally {
+            slots.acquire(concurrency);
+        }
+    }
+
+    private void download(WorkItem item, Semaphore slots) throws IOException {
+        List<File> files = new ArrayList<>();
+        item.getFiles().forEach(name -> files.add(new File(outputFolder, name)));
+        URL url;
+        List<URL> mirrors = new ArrayList<>();
+        try {
+            url = new URL(item.getUrl());
+            for (String mirror : item.getMirrors()) {
+                mirrors.add(new URL(mirror));
+            }
+        } catch (MalformedURLException mue) {
+            System.out.printf("Error processing task '%s': %s%n", item.getUrl(), mue.getMessage());
+            countResult(false, 0);
+            slots.release();
+            client.report(item, false, 0);
+            return;
+        }
+        hostScheduler.schedule(url, files, item.getChecksum(), mirrors)
+                .whenComplete((result, error) -> {
+                    boolean succeeded = result != null && result;
+                    long size = 0;
+                    try {
+                        // the coordinator must get a result of every task, so a missing file fails the task
+                        try {
+                            size = succeeded ? FileUtils.sizeOf(files.get(0)) : 0;
+                        } catch (RuntimeException re) {
+                            System.out.printf("Error processing task '%s': %s%n", item.getUrl(), re.getMessage());
+                            succeeded = false;
+                        }
+                        countResult(succeeded, size);
+                        client.report(item, succeeded, size);
+                    } catch (IOException ioe) {
+                        System.out.printf("Result of %s can not be reported: %s%n", item.getUrl(), ioe.getMessage());
+                    } finally {
+                        slots.release();
+                    }
+                });
+    }
+
+    private synchronized void countResult(boolean succeeded, long size) {
+        if (succeeded) {
+            completed++;
+            downloadedSize += size;
+        } else {
+            failed++;
+        }
+    }
+
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized long getDownloadedSize() {
+        return downloadedSize;
+    }
+}
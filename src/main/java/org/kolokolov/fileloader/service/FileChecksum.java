@@ -0,0 +1,189 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * The class designed for storing the expected checksum of a file and checking the data against it. The checksum is
+ * written in the task file as the algorithm name and the hexadecimal value separated with a colon, e.g.
+ * 'sha256:9f86d0...' or 'crc32c:e3069283'. The checksum of a download is calculated by a {@link Calculator} while the
+ * data is being read from the web resource, so the file is not read again to verify it.
+ *
+ * @author kolokolov
+ */
+public class FileChecksum {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // bytes
+
+    /**
+     * The supported checksum algorithms.
+     */
+    public enum Algorithm {
+        SHA256, CRC32C
+    }
+
+    private final Algorithm algorithm;
+    private final String value;
+
+    public FileChecksum(Algorithm algorithm, String value) {
+        this.algorithm = algorithm;
+        this.value = value.toLowerCase();
+    }
+
+    /**
+     * Parses the checksum written as the algorithm name and the hexadecimal value separated with a colon.
+     *
+     * @param checksum the checksum string
+     * @return an object of the FileChecksum type
+     * @throws IllegalArgumentException if the algorithm is not supported or the value is not hexadecimal
+     */
+    public static FileChecksum parse(String checksum) {
+        int separator = checksum.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException(String.format("Checksum '%s' has no algorithm name", checksum));
+        }
+        Algorithm algorithm;
+        try {
+            algorithm = Algorithm.valueOf(checksum.substring(0, separator).toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(String.format("Checksum algorithm of '%s' is not supported", checksum));
+        }
+        String value = checksum.substring(separator + 1);
+        int length = algorithm == Algorithm.SHA256 ? 64 : 8;
+        if (value.length() != length || !value.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            throw new IllegalArgumentException(String.format("Checksum '%s' has a wrong value", checksum));
+        }
+        return new FileChecksum(algorithm, value);
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public Calculator newCalculator() {
+        return new Calculator();
+    }
+
+    /**
+     * Reads the file and checks whether its checksum is the expected one.
+     *
+     * @param file a file to be checked
+     * @return true if the file exists and its checksum matches
+     * @throws IOException
+     */
+    public boolean matches(File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        Calculator calculator = newCalculator();
+        try (InputStream input = calculator.wrap(Files.newInputStream(file.toPath()))) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (input.read(buffer) != -1) {
+                // the calculator counts the data read
+            }
+        }
+        return calculator.matches();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.name().toLowerCase() + ":" + value;
+    }
+
+    /**
+     * The class designed for calculating the checksum of the data passing through a stream.
+     *
+     * @author kolokolov
+     */
+    public class Calculator {
+        private final MessageDigest digest;
+        private final Checksum checksum;
+
+        private Calculator() {
+            if (algorithm == Algorithm.SHA256) {
+                try {
+                    this.digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException nsae) {
+                    throw new IllegalStateException(nsae);
+                }
+                this.checksum = null;
+            } else {
+                this.digest = null;
+                this.checksum = new CRC32C();
+            }
+        }
+
+        public void update(byte[] data, int offset, int length) {
+            if (digest != null) {
+                digest.update(data, offset, length);
+            } else {
+                checksum.update(data, offset, length);
+            }
+        }
+
+        /**
+         * Returns the stream passing all the data read from the passed stream to the calculator.
+         *
+         * @param input an instance of the InputStream
+         * @return an instance of the InputStream
+         */
+        public InputStream wrap(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        update(new byte[] { (byte) b }, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        update(b, off, count);
+                    }
+                    return count;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    throw new IOException("Checksum stream can not be skipped");
+                }
+            };
+        }
+
+        /**
+         * @return the hexadecimal checksum of the data passed so far
+         */
+        public String getValue() {
+            if (digest != null) {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            }
+            return String.format("%08x", checksum.getValue());
+        }
+
+        /**
+         * @return true if the checksum of the data passed is the expected one
+         */
+        public boolean matches() {
+            return value.equals(getValue());
+        }
+    }
+}
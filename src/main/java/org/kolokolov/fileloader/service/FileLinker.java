@@ -0,0 +1,147 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The class designed for making additional target files out of a file that has already been downloaded, so the data
+ * of a web resource mapped on several file names is written to the disk only once. A target file can be made as a hard
+ * link, as a reflink (a copy-on-write clone supported by some file systems) or as a plain copy. In the auto mode the
+ * cheapest way supported by the file system is used, and a way that has failed once is not tried again between the
+ * same file systems, so a failure between two file systems, e.g. the output folder and a cache on another device, does
+ * not affect the target files made within a single file system.
+ *
+ * @author kolokolov
+ */
+public class FileLinker {
+
+    /**
+     * The ways of making a target file.
+     */
+    public enum LinkMode {
+        AUTO, HARD, REFLINK, COPY;
+
+        /**
+         * Returns the link mode with the passed name ignoring its case.
+         *
+         * @param name the link mode name
+         * @return the link mode
+         * @throws IllegalArgumentException if there is no link mode with such name
+         */
+        public static LinkMode of(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private final LinkMode mode;
+
+    private final Set<List<FileStore>> hardLinksFailed = ConcurrentHashMap.newKeySet();
+    private final Set<List<FileStore>> reflinksFailed = ConcurrentHashMap.newKeySet();
+
+    public FileLinker(LinkMode mode) {
+        this.mode = mode;
+    }
+
+    public LinkMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Makes the target file with the same content as the source file. An existing target file is replaced.
+     *
+     * @param source a downloaded file
+     * @param target a file to be made
+     * @throws IOException if the target file can not be made in the set mode
+     */
+    public void link(File source, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        switch (mode) {
+        case HARD:
+            hardLink(source, target);
+            break;
+        case REFLINK:
+            reflink(source, target);
+            break;
+        case COPY:
+            copy(source, target);
+            break;
+        default:
+            autoLink(source, target);
+        }
+    }
+
+    private void autoLink(File source, File target) throws IOException {
+        List<FileStore> stores = storesOf(source, target);
+        if (!hardLinksFailed.contains(stores)) {
+            try {
+                hardLink(source, target);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                hardLinksFailed.add(stores);
+            }
+        }
+        if (!reflinksFailed.contains(stores)) {
+            try {
+                reflink(source, target);
+                return;
+            } catch (IOException ioe) {
+                reflinksFailed.add(stores);
+                Files.deleteIfExists(target.toPath());
+            }
+        }
+        copy(source, target);
+    }
+
+    /**
+     * Returns the file systems of the source file and of the folder of the target file.
+     */
+    private static List<FileStore> storesOf(File source, File target) throws IOException {
+        File targetFolder = target.getAbsoluteFile().getParentFile();
+        return Arrays.asList(Files.getFileStore(source.toPath()), Files.getFileStore(targetFolder.toPath()));
+    }
+
+    private void hardLink(File source, File target) throws IOException {
+        Files.createLink(target.toPath(), source.toPath());
+    }
+
+    /**
+     * Clones the file with the 'cp' utility, as there is no reflink support in the Java file API.
+     */
+    private void reflink(File source, File target) throws IOException {
+        Process process = new ProcessBuilder("cp", "--reflink=always", source.getPath(), target.getPath())
+                .redirectErrorStream(true).start();
+        try {
+            String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IOException(String.format("Can not reflink file '%s': %s", source.getName(), output.trim()));
+            }
+        } catch (InterruptedException ie) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        }
+    }
+
+    private void copy(File source, File target) throws IOException {
+        try (FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = input.size();
+            long position = 0;
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+}
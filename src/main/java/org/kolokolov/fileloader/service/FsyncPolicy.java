@@ -0,0 +1,63 @@
+package org.kolokolov.fileloader.service;
+
+/**
+ * The class designed for storing the way downloaded data is forced to the storage device. The data can be left to the
+ * operating system, synchronized once when the download is complete or synchronized every time the set number of bytes
+ * has been written.
+ * <p>
+ * The progress of a segmented download is committed to its {@link DownloadJournal} only after the data has been
+ * synchronized, so segmented downloads are synchronized at every commit whatever the policy is, and the sync interval
+ * sets the commit size.
+ *
+ * @author kolokolov
+ */
+public class FsyncPolicy {
+
+    public static final FsyncPolicy NONE = new FsyncPolicy(false, 0);
+    public static final FsyncPolicy ON_COMPLETE = new FsyncPolicy(true, 0);
+
+    private final boolean syncOnComplete;
+    private final long interval; // bytes
+
+    private FsyncPolicy(boolean syncOnComplete, long interval) {
+        this.syncOnComplete = syncOnComplete;
+        this.interval = interval;
+    }
+
+    /**
+     * Returns the policy synchronizing the data every time the passed number of bytes has been written and when the
+     * download is complete.
+     *
+     * @param interval number of bytes written between synchronizations, it must be greater than 0
+     * @return an object of the FsyncPolicy type
+     */
+    public static FsyncPolicy every(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be greater than 0");
+        }
+        return new FsyncPolicy(true, interval);
+    }
+
+    /**
+     * @return true if the data is synchronized when the download is complete
+     */
+    public boolean syncsOnComplete() {
+        return syncOnComplete;
+    }
+
+    /**
+     * @return number of bytes written between synchronizations or 0 if the data is not synchronized while being
+     *         written
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        if (interval > 0) {
+            return String.format("every %d bytes", interval);
+        }
+        return syncOnComplete ? "on complete" : "none";
+    }
+}
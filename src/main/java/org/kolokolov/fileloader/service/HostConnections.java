@@ -0,0 +1,82 @@
+package org.kolokolov.fileloader.service;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The class designed for counting the connections opened to every host and keeping their number within the set
+ * maximum. Connections are taken without waiting: a caller that does not get a connection is supposed to try again
+ * after one is released, and the release listener is notified every time connections are released.
+ * <p>
+ * The connections themselves are reused by the HTTP keep-alive cache of {@link java.net.HttpURLConnection}, which
+ * keeps up to 'http.maxConnections' idle connections per host, so the property is raised to the maximum set here.
+ * TLS sessions are resumed by the session cache of the default SSL context.
+ *
+ * @author kolokolov
+ */
+public class HostConnections {
+
+    private final int maxConnections;
+    private final Map<String, Integer> activeConnections = new HashMap<>();
+    private Runnable releaseListener = () -> {
+    };
+
+    /**
+     * Creates an instance of the HostConnections class.
+     *
+     * @param maxConnections maximum number of connections to a host. If this value is equal or less than 0, than the
+     *            number of connections is not limited.
+     */
+    public HostConnections(int maxConnections) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+        if (maxConnections > Integer.getInteger("http.maxConnections", 5)) {
+            System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+        }
+    }
+
+    public static String hostOf(URL url) {
+        return url.getHost().toLowerCase();
+    }
+
+    public void setReleaseListener(Runnable releaseListener) {
+        this.releaseListener = releaseListener;
+    }
+
+    /**
+     * Takes up to the passed number of connections to the host.
+     *
+     * @param host the host name
+     * @param number number of connections wanted
+     * @return number of connections taken, from 0 to the passed number
+     */
+    public synchronized int tryAcquire(String host, int number) {
+        int active = activeConnections.getOrDefault(host, 0);
+        int acquired = (int) Math.max(Math.min((long) maxConnections - active, number), 0);
+        if (acquired > 0) {
+            activeConnections.put(host, active + acquired);
+        }
+        return acquired;
+    }
+
+    /**
+     * Returns the connections to the host and notifies the release listener.
+     *
+     * @param host the host name
+     * @param number number of connections returned
+     */
+    public void release(String host, int number) {
+        if (number <= 0) {
+            return;
+        }
+        synchronized (this) {
+            int active = activeConnections.getOrDefault(host, 0) - number;
+            if (active > 0) {
+                activeConnections.put(host, active);
+            } else {
+                activeConnections.remove(host);
+            }
+        }
+        releaseListener.run();
+    }
+}
@@ -0,0 +1,204 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The class designed for scheduling downloads between the hosts. Downloads are grouped by host, and a download is
+ * handed over to {@link ThreadService} only when its host has a free connection in {@link HostConnections}. Thus no
+ * download thread waits for a busy host while downloads from other hosts are pending. Among the hosts having free
+ * connections the download scheduled first is started first, except for the downloads scheduled ahead of the others,
+ * e.g. the retries of the failed ones, which are started before any other download.
+ *
+ * @author kolokolov
+ */
+public class HostScheduler {
+
+    private final ThreadService threadService;
+    private final DownloadService downloadService;
+    private final HostConnections hostConnections;
+
+    private final Map<String, Deque<ScheduledDownload>> pendingDownloads = new HashMap<>();
+    private long scheduledCount;
+    private long priorityCount;
+
+    public HostScheduler(ThreadService threadService, DownloadService downloadService,
+            HostConnections hostConnections) {
+        this.threadService = threadService;
+        this.downloadService = downloadService;
+        this.hostConnections = hostConnections;
+        hostConnections.setReleaseListener(this::dispatch);
+    }
+
+    /**
+     * Schedules downloading the web resource to the files.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @return an object with the Future interface that returns true if data reading and storing succeeded
+     */
+    public CompletableFuture<Boolean> schedule(URL url, List<File> files) {
+        return schedule(url, files, null);
+    }
+
+    /**
+     * Schedules downloading the web resource to the files and verifying its checksum.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource, may be null
+     * @return an object with the Future interface that returns true if data reading and storing succeeded
+     */
+    public CompletableFuture<Boolean> schedule(URL url, List<File> files, FileChecksum checksum) {
+        return schedule(url, files, checksum, Collections.emptyList());
+    }
+
+    /**
+     * Schedules downloading the web resource available from several mirrors to the files. The download is scheduled
+     * for the host of the primary URL.
+     *
+     * @param url the primary absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource, may be null
+     * @param mirrors the other URLs the web resource is available from, may be empty
+     * @return an object with the Future interface that returns true if data reading and storing succeeded
+     */
+    public CompletableFuture<Boolean> schedule(URL url, List<File> files, FileChecksum checksum, List<URL> mirrors) {
+        return schedule(new ScheduledDownload(url, files, checksum, mirrors), false);
+    }
+
+    /**
+     * Schedules downloading the web resource as by the {@link #schedule(URL, List, FileChecksum, List)} method, but
+     * ahead of all the pending downloads, so it is started as soon as its host has a free connection. The downloads
+     * scheduled ahead are started in the reverse order.
+     *
+     * @param url the primary absolute URL of a web resource representing a file
+     * @param files Collection of files for storing data read from web resource in
+     * @param checksum the expected checksum of the web resource, may be null
+     * @param mirrors the other URLs the web resource is available from, may be empty
+     * @return an object with the Future interface that returns true if data reading and storing succeeded
+     */
+    public CompletableFuture<Boolean> scheduleFirst(URL url, List<File> files, FileChecksum checksum,
+            List<URL> mirrors) {
+        return schedule(new ScheduledDownload(url, files, checksum, mirrors), true);
+    }
+
+    private CompletableFuture<Boolean> schedule(ScheduledDownload download, boolean first) {
+        synchronized (this) {
+            Deque<ScheduledDownload> downloads = pendingDownloads.computeIfAbsent(download.host,
+                    host -> new ArrayDeque<>());
+            if (first) {
+                download.sequenceNumber = --priorityCount;
+                downloads.addFirst(download);
+            } else {
+                download.sequenceNumber = scheduledCount++;
+                downloads.addLast(download);
+            }
+        }
+        downloadService.getMetrics().downloadQueued();
+        dispatch();
+        return download.report;
+    }
+
+    /**
+     * Drops all the downloads that have not been started. Their futures are cancelled.
+     *
+     * @return the number of the downloads dropped
+     */
+    public int cancelPending() {
+        List<ScheduledDownload> cancelled = new ArrayList<>();
+        synchronized (this) {
+            pendingDownloads.values().forEach(cancelled::addAll);
+            pendingDownloads.clear();
+        }
+        for (ScheduledDownload download : cancelled) {
+            downloadService.getMetrics().downloadDequeued();
+            download.report.cancel(false);
+        }
+        return cancelled.size();
+    }
+
+    /**
+     * Starts pending downloads while their hosts have free connections.
+     */
+    private void dispatch() {
+        ScheduledDownload download;
+        while ((download = nextDownload()) != null) {
+            ScheduledDownload started = download;
+            downloadService.getMetrics().downloadDequeued();
+            threadService.executeInNewThread(() -> {
+                try {
+                    boolean result = downloadService.downloadFiles(started.url, started.files, started.checksum,
+                            started.mirrors);
+                    started.report.complete(result);
+                    return result;
+                } catch (RuntimeException | Error e) {
+                    started.report.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    hostConnections.release(started.host, 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the earliest scheduled download whose host has a free connection from the pending downloads and takes
+     * the connection for it.
+     *
+     * @return the download or null if no download can be started
+     */
+    private synchronized ScheduledDownload nextDownload() {
+        Set<String> busyHosts = new HashSet<>();
+        while (true) {
+            Deque<ScheduledDownload> next = null;
+            for (Map.Entry<String, Deque<ScheduledDownload>> entry : pendingDownloads.entrySet()) {
+                Deque<ScheduledDownload> downloads = entry.getValue();
+                if (!busyHosts.contains(entry.getKey())
+                        && (next == null || downloads.peek().sequenceNumber < next.peek().sequenceNumber)) {
+                    next = downloads;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            String host = next.peek().host;
+            if (hostConnections.tryAcquire(host, 1) == 1) {
+                ScheduledDownload download = next.poll();
+                if (next.isEmpty()) {
+                    pendingDownloads.remove(host);
+                }
+                return download;
+            }
+            busyHosts.add(host);
+        }
+    }
+
+    private static class ScheduledDownload {
+        private final URL url;
+        private final List<File> files;
+        private final FileChecksum checksum;
+        private final List<URL> mirrors;
+        private final String host;
+        private final CompletableFuture<Boolean> report = new CompletableFuture<>();
+        private long sequenceNumber;
+
+        public ScheduledDownload(URL url, List<File> files, FileChecksum checksum, List<URL> mirrors) {
+            this.url = url;
+            this.files = files;
+            this.checksum = checksum;
+            this.mirrors = mirrors;
+            this.host = HostConnections.hostOf(url);
+        }
+    }
+}
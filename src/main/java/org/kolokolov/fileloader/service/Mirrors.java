@@ -0,0 +1,209 @@
+package org.kolokolov.fileloader.service;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The class designed for choosing the source of a web resource that is available from several mirrors. The mirrors
+ * are probed at once and ordered by their response time, so a download starts from the fastest one. The mirrors whose
+ * resource differs in length from the fastest one or which do not respond are dropped. The mirrors that do not support
+ * byte ranges are kept for downloading by a single connection, but are left out of a download by byte ranges. While
+ * the resource is being downloaded by byte ranges, the speed of every mirror is tracked, and a mirror whose speed
+ * drops below {@value #SWITCH_RATIO} of the best speed it has shown is reported as degraded, so the rest of the range
+ * can be requested from the next mirror.
+ *
+ * @author kolokolov
+ */
+public class Mirrors {
+
+    private static final double SWITCH_RATIO = 0.25;
+
+    private final List<URL> sources;
+    private final List<RemoteResource> resources;
+    private final AtomicLongArray bestSpeeds;
+
+    private Mirrors(List<URL> sources, List<RemoteResource> resources) {
+        this.sources = sources;
+        this.resources = resources;
+        this.bestSpeeds = new AtomicLongArray(sources.size());
+    }
+
+    /**
+     * Probes the only source of a web resource.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @return an object of the Mirrors type
+     */
+    public static Mirrors of(URL url) {
+        return of(url, null);
+    }
+
+    /**
+     * Makes the only source of a web resource, probing it unless it has already been probed.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param resource the properties of the web resource if they are known, e.g. from a conditional request, or null
+     * @return an object of the Mirrors type
+     */
+    public static Mirrors of(URL url, RemoteResource resource) {
+        return new Mirrors(Collections.singletonList(url),
+                Collections.singletonList(resource != null ? resource : RemoteResource.probe(url)));
+    }
+
+    /**
+     * Probes all the mirrors of a web resource at once within the segment threads and orders them by their response
+     * time. If none of the mirrors describes the resource, the first one is used as the only source.
+     *
+     * @param urls the URLs of the mirrors, the first one is the primary URL of the resource
+     * @param threadService an instance of the {@link ThreadService} class executing the probes
+     * @return an object of the Mirrors type
+     * @throws InterruptedException
+     */
+    public static Mirrors probe(List<URL> urls, ThreadService threadService) throws InterruptedException {
+        return probe(urls, null, 0, threadService);
+    }
+
+    /**
+     * Probes the mirrors of a web resource as by the {@link #probe(List, ThreadService)} method. The primary URL is
+     * not probed again if its properties are already known.
+     *
+     * @param urls the URLs of the mirrors, the first one is the primary URL of the resource
+     * @param primaryResource the properties received from the primary URL, e.g. by a conditional request, or null
+     * @param primaryResponseTime the time the primary URL has responded in nanoseconds
+     * @param threadService an instance of the {@link ThreadService} class executing the probes
+     * @return an object of the Mirrors type
+     * @throws InterruptedException
+     */
+    public static Mirrors probe(List<URL> urls, RemoteResource primaryResource, long primaryResponseTime,
+            ThreadService threadService) throws InterruptedException {
+        if (urls.size() == 1) {
+            return of(urls.get(0), primaryResource);
+        }
+        RemoteResource[] resources = new RemoteResource[urls.size()];
+        List<Future<Long>> probeTimes = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            int index = i;
+            if (index == 0 && primaryResource != null) {
+                resources[0] = primaryResource;
+                probeTimes.add(CompletableFuture.completedFuture(primaryResponseTime));
+                continue;
+            }
+            probeTimes.add(threadService.executeSegment(() -> {
+                long startTime = System.nanoTime();
+                resources[index] = RemoteResource.probe(urls.get(index));
+                return System.nanoTime() - startTime;
+            }));
+        }
+        long[] responseTimes = new long[urls.size()];
+        List<Integer> responded = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            try {
+                responseTimes[i] = probeTimes.get(i).get();
+            } catch (ExecutionException ee) {
+                continue;
+            }
+            if (resources[i].getContentLength() >= 0) {
+                responded.add(i);
+            }
+        }
+        if (responded.isEmpty()) {
+            return new Mirrors(Collections.singletonList(urls.get(0)), Collections.singletonList(resources[0]));
+        }
+        responded.sort(Comparator.comparingLong(index -> responseTimes[index]));
+        RemoteResource fastest = resources[responded.get(0)];
+        List<URL> sources = new ArrayList<>();
+        List<RemoteResource> sourceResources = new ArrayList<>();
+        for (int index : responded) {
+            if (resources[index].getContentLength() == fastest.getContentLength()) {
+                sources.add(urls.get(index));
+                sourceResources.add(resources[index]);
+            }
+        }
+        return new Mirrors(sources, sourceResources);
+    }
+
+    /**
+     * @return the properties of the web resource received from the fastest mirror
+     */
+    public RemoteResource getResource() {
+        return resources.get(0);
+    }
+
+    /**
+     * Returns the properties of the web resource received from the passed URL, e.g. to keep the validators issued by
+     * the primary URL rather than by a mirror. The URLs are compared by their text, so the host names are not
+     * resolved.
+     *
+     * @param url the URL of one of the mirrors
+     * @return the properties of the web resource or null if the URL is not one of the mirrors, e.g. it has been dropped
+     */
+    public RemoteResource getResourceOf(URL url) {
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).toString().equals(url.toString())) {
+                return resources.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the mirrors the resource can be downloaded from by byte ranges in the order of their response time.
+     *
+     * @return this object if all the mirrors support byte ranges, the mirrors supporting them, or null if none does
+     */
+    public Mirrors getSegmentableSources() {
+        List<URL> segmentableSources = new ArrayList<>();
+        List<RemoteResource> segmentableResources = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            if (resources.get(i).isSegmentable()) {
+                segmentableSources.add(sources.get(i));
+                segmentableResources.add(resources.get(i));
+            }
+        }
+        if (segmentableSources.isEmpty()) {
+            return null;
+        }
+        return segmentableSources.size() == sources.size() ? this
+                : new Mirrors(segmentableSources, segmentableResources);
+    }
+
+    public int size() {
+        return sources.size();
+    }
+
+    /**
+     * @param index the mirror index, 0 is the fastest mirror
+     * @return the URL of the mirror
+     */
+    public URL getSource(int index) {
+        return sources.get(index);
+    }
+
+    /**
+     * @param index the mirror index
+     * @return the index of the mirror to switch to from the passed one
+     */
+    public int next(int index) {
+        return (index + 1) % sources.size();
+    }
+
+    /**
+     * Records the speed a byte range has been received from the mirror at and checks whether the mirror has degraded.
+     * The only mirror is never reported as degraded, as there is no source to switch to.
+     *
+     * @param index the mirror index
+     * @param speed the speed in bytes/s
+     * @return true if the speed is much lower than the best speed of the mirror
+     */
+    public boolean isDegraded(int index, long speed) {
+        long bestSpeed = bestSpeeds.accumulateAndGet(index, speed, Math::max);
+        return sources.size() > 1 && speed < bestSpeed * SWITCH_RATIO;
+    }
+}
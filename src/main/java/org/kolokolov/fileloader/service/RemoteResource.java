@@ -0,0 +1,136 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The class designed for storing the properties of a web resource that were received by probing it with a HEAD
+ * request before downloading.
+ *
+ * @author kolokolov
+ */
+public class RemoteResource {
+
+    private static final RemoteResource UNKNOWN = new RemoteResource(-1, false, null, null);
+
+    private final long contentLength;
+    private final boolean acceptsRanges;
+    private final String eTag;
+    private final String lastModified;
+    private final boolean notModified;
+
+    public RemoteResource(long contentLength, boolean acceptsRanges, String eTag, String lastModified) {
+        this(contentLength, acceptsRanges, eTag, lastModified, false);
+    }
+
+    private RemoteResource(long contentLength, boolean acceptsRanges, String eTag, String lastModified,
+            boolean notModified) {
+        this.contentLength = contentLength;
+        this.acceptsRanges = acceptsRanges;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.notModified = notModified;
+    }
+
+    /**
+     * Sends a HEAD request to the web resource and reads its length and byte range support from the response headers.
+     * Resources with protocols other than HTTP(S) and resources responding with an error are described as unknown.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @return an object of the RemoteResource type
+     */
+    public static RemoteResource probe(URL url) {
+        return probe(url, null, null);
+    }
+
+    /**
+     * Sends a conditional HEAD request to the web resource with the validators of a stored copy. If the server
+     * responds that the resource has not been modified, the resource is described as not modified, otherwise it is
+     * described as by the {@link #probe(URL)} method.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param eTag the entity tag of the stored copy sent in the If-None-Match header, may be null
+     * @param lastModified the modification date of the stored copy sent in the If-Modified-Since header, may be null
+     * @return an object of the RemoteResource type
+     */
+    public static RemoteResource probe(URL url, String eTag, String lastModified) {
+        try {
+            URLConnection urlConnection = url.openConnection();
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                return UNKNOWN;
+            }
+            HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            connection.setRequestMethod("HEAD");
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && (eTag != null || lastModified != null)) {
+                connection.disconnect();
+                return new RemoteResource(-1, false, eTag, lastModified, true);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                return UNKNOWN;
+            }
+            boolean acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            RemoteResource resource = new RemoteResource(connection.getContentLengthLong(), acceptsRanges,
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            connection.getInputStream().close();
+            return resource;
+        } catch (IOException ioe) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return the resource length in bytes or -1 if it is unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean acceptsRanges() {
+        return acceptsRanges;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns a validator suitable for the If-Range header. Weak entity tags can not be used for byte range requests,
+     * so the modification date is returned instead of them.
+     *
+     * @return the strong entity tag or the modification date of the resource, or null if it has neither of them
+     */
+    public String getRangeValidator() {
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * @return true if the server has responded that the resource is the same as the stored copy
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * @return true if the resource can be downloaded by several byte range requests
+     */
+    public boolean isSegmentable() {
+        return acceptsRanges && contentLength > 0;
+    }
+}
@@ -0,0 +1,115 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The class designed for limiting the download speed of a worker by the global token bucket of the
+ * {@link WorkCoordinator}. Tokens are granted by the coordinator in portions of about {@value #GRANT_TIME} ms of the
+ * global speed limit, so the coordinator is not asked for every read. A grant comes with the time the coordinator's
+ * bucket needs to refill its tokens, and the tokens of the grant are not used before that time.
+ * <p>
+ * The grants are requested by a thread of the bucket, and the next grant is requested as soon as the tokens left drop
+ * below half a grant, so the download threads take the tokens under a short lock and wait for the coordinator only if
+ * they use the tokens up faster than the grants arrive. If the coordinator can not be reached, the bucket falls back
+ * to applying the global speed limit locally.
+ *
+ * @author kolokolov
+ */
+public class RemoteTokenBucket extends TokenBucket {
+
+    private static final int GRANT_TIME = 50; // ms
+
+    private final CoordinatorClient client;
+    private final long grantSize;
+    private final Executor grantExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "token-grants");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long credit;
+    private long readyTime = System.nanoTime();
+    private CompletableFuture<Void> pendingGrant;
+    private volatile boolean local;
+
+    /**
+     * Creates an instance of the RemoteTokenBucket class.
+     *
+     * @param client the connection to the coordinator
+     */
+    public RemoteTokenBucket(CoordinatorClient client) {
+        super(client.getSpeedLimit());
+        this.client = client;
+        this.grantSize = Math.max(getSpeedLimit() * GRANT_TIME / 1000, 1);
+    }
+
+    /**
+     * Takes the tokens from the granted ones, waiting for a new grant if not enough tokens have been granted. Once the
+     * coordinator can not be reached, the tokens are taken from the local bucket.
+     *
+     * @param byteCount number of tokens to be taken
+     * @return time to wait in nanoseconds
+     */
+    @Override
+    public long reserve(long byteCount) {
+        while (!local) {
+            CompletableFuture<Void> grant;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (credit >= byteCount) {
+                    credit -= byteCount;
+                    if (credit < grantSize / 2) {
+                        requestGrant(grantSize);
+                    }
+                    return Math.max(readyTime - now, 0);
+                }
+                grant = requestGrant(Math.max(grantSize, byteCount - credit));
+            }
+            try {
+                grant.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                // the failure has been reported by the grant thread
+            }
+        }
+        return super.reserve(byteCount);
+    }
+
+    /**
+     * Starts requesting a grant from the coordinator unless a grant is being requested already.
+     *
+     * @return the future completed when the grant has been received or has failed
+     */
+    private CompletableFuture<Void> requestGrant(long size) {
+        if (pendingGrant == null) {
+            pendingGrant = CompletableFuture.runAsync(() -> receiveGrant(size), grantExecutor);
+        }
+        return pendingGrant;
+    }
+
+    private void receiveGrant(long size) {
+        long waitTime = 0;
+        boolean failed = false;
+        try {
+            waitTime = client.grant(size);
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Coordinator can not grant tokens (%s), the speed limit is applied locally%n",
+                    e.getMessage());
+            failed = true;
+        }
+        synchronized (this) {
+            if (failed) {
+                local = true;
+            } else {
+                readyTime = Math.max(readyTime, System.nanoTime() + waitTime);
+                credit += size;
+            }
+            pendingGrant = null;
+        }
+    }
+}
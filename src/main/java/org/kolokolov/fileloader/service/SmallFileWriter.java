@@ -0,0 +1,162 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The class designed for storing the small files that have been downloaded into memory. The download threads hand the
+ * data over and the writer thread stores it in batches: every file of a batch is written to its staging file with a
+ * single write, then the staging files are synchronized according to the {@link FsyncPolicy}, and only then they are
+ * renamed and the other target files are made by the {@link FileLinker}. So the file system work of many small files
+ * is done by one thread in a row rather than scattered over all the download threads.
+ *
+ * @author kolokolov
+ */
+public class SmallFileWriter implements Runnable {
+
+    private final int MAX_BATCH_SIZE = 256;
+
+    private final BlockingQueue<SmallFile> queue = new LinkedBlockingQueue<>();
+    private final FileLinker fileLinker;
+    private final FsyncPolicy fsyncPolicy;
+
+    /**
+     * Creates an instance of the SmallFileWriter class.
+     *
+     * @param fileLinker the linker making the other target files out of the primary one
+     * @param fsyncPolicy the way the data is forced to the storage device
+     */
+    public SmallFileWriter(FileLinker fileLinker, FsyncPolicy fsyncPolicy) {
+        this.fileLinker = fileLinker;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Hands the data of a downloaded file over to the writer thread.
+     *
+     * @param primaryFile the file the data is written to
+     * @param files all the target files of the data including the primary one
+     * @param data the array holding the data
+     * @param length the length of the data
+     * @return the future completed when all the target files have been made
+     */
+    public CompletableFuture<Void> write(File primaryFile, List<File> files, byte[] data, int length) {
+        SmallFile smallFile = new SmallFile(primaryFile, files, data, length);
+        queue.add(smallFile);
+        return smallFile.written;
+    }
+
+    /**
+     * Stores the files handed over until the thread is interrupted. It is supposed to be run by a daemon thread. An
+     * unexpected failure of a batch fails the files of the batch that have not been stored, and the thread goes on
+     * with the next batch.
+     */
+    @Override
+    public void run() {
+        List<SmallFile> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                try {
+                    writeBatch(batch);
+                } catch (RuntimeException re) {
+                    for (SmallFile smallFile : batch) {
+                        if (!smallFile.written.isDone()) {
+                            smallFile.fail(new IOException(re.getMessage(), re));
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(List<SmallFile> batch) {
+        for (SmallFile smallFile : batch) {
+            try {
+                smallFile.channel = FileChannel.open(smallFile.partFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer buffer = ByteBuffer.wrap(smallFile.data, 0, smallFile.length);
+                while (buffer.hasRemaining()) {
+                    smallFile.channel.write(buffer);
+                }
+            } catch (IOException ioe) {
+                smallFile.fail(ioe);
+            }
+        }
+        for (SmallFile smallFile : batch) {
+            if (smallFile.channel != null && fsyncPolicy.syncsOnComplete() && !smallFile.written.isDone()) {
+                try {
+                    smallFile.channel.force(false);
+                } catch (IOException ioe) {
+                    smallFile.fail(ioe);
+                }
+            }
+        }
+        for (SmallFile smallFile : batch) {
+            if (smallFile.written.isDone()) {
+                continue;
+            }
+            try {
+                smallFile.channel.close();
+                Files.move(smallFile.partFile.toPath(), smallFile.primaryFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (File file : smallFile.files) {
+                    if (!file.equals(smallFile.primaryFile)) {
+                        fileLinker.link(smallFile.primaryFile, file);
+                    }
+                }
+                smallFile.written.complete(null);
+            } catch (IOException ioe) {
+                smallFile.fail(ioe);
+            }
+        }
+    }
+
+    /**
+     * The class designed for holding the data of a small file until it has been stored.
+     *
+     * @author kolokolov
+     */
+    private static class SmallFile {
+        private final File primaryFile;
+        private final File partFile;
+        private final List<File> files;
+        private final byte[] data;
+        private final int length;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private FileChannel channel;
+
+        SmallFile(File primaryFile, List<File> files, byte[] data, int length) {
+            this.primaryFile = primaryFile;
+            this.partFile = DownloadService.partFileOf(primaryFile);
+            this.files = files;
+            this.data = data;
+            this.length = length;
+        }
+
+        void fail(IOException ioe) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    ioe.addSuppressed(closeError);
+                }
+            }
+            written.completeExceptionally(ioe);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.kolokolov.fileloader.service;
+
+import java.net.URL;
+import java.util.Objects;
+
+/**
+ * The class designed for taking the connections of a single download from {@link HostConnections} by the host of the
+ * source every connection is opened to, so a connection to a mirror is counted against the host of the mirror rather
+ * than the host of the primary URL.
+ * <p>
+ * The download has been scheduled with one connection to the host of its primary URL, the task connection. It is
+ * used for the primary host first, and it stands in for any source when none of their hosts has a free connection,
+ * so a download never waits for the connections held by other downloads. A connection can only be refused while the
+ * task connection is used by another thread of the same download.
+ *
+ * @author kolokolov
+ */
+public class SourceConnections {
+
+    private final HostConnections hostConnections;
+    private final String primaryHost;
+    private boolean taskConnectionTaken;
+
+    /**
+     * Creates an instance of the SourceConnections class.
+     *
+     * @param hostConnections the connections of all the hosts, the connections are not limited if it is null
+     * @param url the primary absolute URL of the web resource the task connection has been taken for
+     */
+    public SourceConnections(HostConnections hostConnections, URL url) {
+        this.hostConnections = hostConnections;
+        this.primaryHost = HostConnections.hostOf(url);
+    }
+
+    /**
+     * Takes a connection to one of the mirrors trying them from the preferred one on.
+     *
+     * @param sources the mirrors of the web resource
+     * @param preferred the index of the mirror to be tried first
+     * @return the connection or null if no connection can be taken
+     */
+    public synchronized Connection acquire(Mirrors sources, int preferred) {
+        return take(sources, preferred, null);
+    }
+
+    /**
+     * Moves the connection to another mirror trying them from the preferred one on. A mirror of the same host is
+     * connected to by the connection already taken. The connection is kept with its mirror if no other one can be
+     * connected to.
+     *
+     * @param sources the mirrors of the web resource
+     * @param connection the connection taken by the {@link #acquire(Mirrors, int)} method
+     * @param preferred the index of the mirror to be tried first
+     * @return the new connection or the passed one if it has not been moved
+     */
+    public Connection switchTo(Mirrors sources, Connection connection, int preferred) {
+        Connection switched;
+        synchronized (this) {
+            switched = take(sources, preferred, connection);
+        }
+        if (switched == null) {
+            return connection;
+        }
+        if (switched.taskConnection != connection.taskConnection || !Objects.equals(switched.host, connection.host)) {
+            release(connection);
+        }
+        return switched;
+    }
+
+    /**
+     * Returns the connection, so it can be taken again by this or another download.
+     *
+     * @param connection the connection taken by this object
+     */
+    public void release(Connection connection) {
+        if (connection.taskConnection) {
+            synchronized (this) {
+                taskConnectionTaken = false;
+            }
+        } else if (connection.host != null) {
+            hostConnections.release(connection.host, 1);
+        }
+    }
+
+    /**
+     * Takes a connection for the first mirror from the preferred one on that can be connected to, skipping the mirror
+     * of the held connection.
+     */
+    private Connection take(Mirrors sources, int preferred, Connection held) {
+        int excluded = held == null ? -1 : held.source;
+        for (int i = 0; i < sources.size(); i++) {
+            int source = (preferred + i) % sources.size();
+            if (source == excluded) {
+                continue;
+            }
+            if (hostConnections == null) {
+                return new Connection(source, null, false);
+            }
+            String host = HostConnections.hostOf(sources.getSource(source));
+            if (held != null && host.equals(held.taskConnection ? primaryHost : held.host)) {
+                return new Connection(source, held.host, held.taskConnection);
+            }
+            if (host.equals(primaryHost) && !taskConnectionTaken) {
+                taskConnectionTaken = true;
+                return new Connection(source, null, true);
+            }
+            if (hostConnections.tryAcquire(host, 1) == 1) {
+                return new Connection(source, host, false);
+            }
+        }
+        int source = preferred % sources.size();
+        if (!taskConnectionTaken && source != excluded) {
+            taskConnectionTaken = true;
+            return new Connection(source, null, true);
+        }
+        return null;
+    }
+
+    /**
+     * The class designed for holding a connection taken for a mirror.
+     *
+     * @author kolokolov
+     */
+    public static class Connection {
+        private final int source;
+        private final String host;
+        private final boolean taskConnection;
+
+        private Connection(int source, String host, boolean taskConnection) {
+            this.source = source;
+            this.host = host;
+            this.taskConnection = taskConnection;
+        }
+
+        /**
+         * @return the index of the mirror the connection is taken for
+         */
+        public int getSource() {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.kolokolov.fileloader.service;
+
+import java.util.List;
+
+/**
+ * The class designed for limiting the speed of a single download by several token buckets at once. Tokens are taken
+ * from every bucket without waiting, and then the thread waits for the longest of the refill times. Thus a read never
+ * holds the tokens of one bucket while it is blocked by another, and no order of taking tokens can lead to a deadlock.
+ *
+ * @author kolokolov
+ */
+public class SpeedLimiter {
+
+    private final List<TokenBucket> buckets;
+
+    public SpeedLimiter(List<TokenBucket> buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return true if at least one speed limit is applied to the download
+     */
+    public boolean isLimited() {
+        return !buckets.isEmpty();
+    }
+
+    /**
+     * @return the lowest of the speed limits in bytes/s, or Long.MAX_VALUE if the download is not limited
+     */
+    public long getSpeedLimit() {
+        return buckets.stream().mapToLong(TokenBucket::getSpeedLimit).min().orElse(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the passed number of tokens from all the buckets and stops the thread until all of them have refilled the
+     * missing tokens.
+     *
+     * @param byteCount number of tokens to be taken
+     * @return time waited in nanoseconds
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public long emptyBuckets(int byteCount) throws InterruptedException {
+        long waitTime = 0;
+        for (TokenBucket bucket : buckets) {
+            waitTime = Math.max(waitTime, bucket.reserve(byteCount));
+        }
+        TokenBucket.await(waitTime);
+        return waitTime;
+    }
+}
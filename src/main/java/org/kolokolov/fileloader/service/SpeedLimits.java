@@ -0,0 +1,114 @@
+package org.kolokolov.fileloader.service;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The class designed for storing the download speed limits of three levels: the global limit shared by all the
+ * downloads, the limits of the hosts shared by all the downloads from the same host and the limit of every single
+ * download. Each level is optional. A host limit is either set for a particular host or set as default for all the
+ * hosts. The token buckets of the hosts are created on demand and then shared.
+ *
+ * @author kolokolov
+ */
+public class SpeedLimits {
+
+    private final TokenBucket globalBucket;
+    private final long hostSpeedLimit;
+    private final Map<String, Long> hostSpeedLimits;
+    private final long taskSpeedLimit;
+
+    private final ConcurrentMap<String, TokenBucket> hostBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance of the SpeedLimits class with the global limit only.
+     *
+     * @param speedLimit the global speed limit in bits/s, no limit if it is equal or less than 0
+     */
+    public SpeedLimits(long speedLimit) {
+        this(speedLimit, 0, Collections.emptyMap(), 0);
+    }
+
+    /**
+     * Creates an instance of the SpeedLimits class. Every limit equal or less than 0 is not set.
+     *
+     * @param speedLimit the global speed limit in bits/s
+     * @param hostSpeedLimit the default speed limit of a host in bits/s
+     * @param hostSpeedLimits the speed limits of particular hosts in bits/s mapped on the host names
+     * @param taskSpeedLimit the speed limit of a single download in bits/s
+     */
+    public SpeedLimits(long speedLimit, long hostSpeedLimit, Map<String, Long> hostSpeedLimits,
+            long taskSpeedLimit) {
+        this(speedLimit > 0 ? new TokenBucket(speedLimit) : null, hostSpeedLimit, hostSpeedLimits, taskSpeedLimit);
+    }
+
+    /**
+     * Creates an instance of the SpeedLimits class with the global limit applied by the passed bucket, e.g. by a
+     * {@link RemoteTokenBucket} shared with other processes. Every other limit equal or less than 0 is not set.
+     *
+     * @param globalBucket the bucket of the global speed limit, no global limit if it is null
+     * @param hostSpeedLimit the default speed limit of a host in bits/s
+     * @param hostSpeedLimits the speed limits of particular hosts in bits/s mapped on the host names
+     * @param taskSpeedLimit the speed limit of a single download in bits/s
+     */
+    public SpeedLimits(TokenBucket globalBucket, long hostSpeedLimit, Map<String, Long> hostSpeedLimits,
+            long taskSpeedLimit) {
+        this.globalBucket = globalBucket;
+        this.hostSpeedLimit = hostSpeedLimit;
+        this.hostSpeedLimits = new HashMap<>();
+        hostSpeedLimits.forEach((host, limit) -> this.hostSpeedLimits.put(host.toLowerCase(), limit));
+        this.taskSpeedLimit = taskSpeedLimit;
+    }
+
+    /**
+     * Creates a speed limiter for a single download from the passed URL. The limiter takes tokens from the global
+     * bucket, from the bucket of the URL host and from a new bucket of its own, if the corresponding limits are set.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @return an object of the {@link SpeedLimiter} type
+     */
+    public SpeedLimiter limiterFor(URL url) {
+        return limiterFor(url, newTaskBucket());
+    }
+
+    /**
+     * Creates the bucket of the speed limit of a single download, shared by all the connections of the download
+     * whatever their sources are.
+     *
+     * @return a new token bucket or null if the limit of a single download is not set
+     */
+    public TokenBucket newTaskBucket() {
+        return taskSpeedLimit > 0 ? new TokenBucket(taskSpeedLimit) : null;
+    }
+
+    /**
+     * Creates a speed limiter for a connection of a download to the passed source. The limiter takes tokens from the
+     * global bucket, from the bucket of the source host and from the bucket of the download, so the bytes received from
+     * a mirror are counted against the host of the mirror rather than the host of the primary URL.
+     *
+     * @param source the absolute URL the connection is opened to
+     * @param taskBucket the bucket of the download created by {@link #newTaskBucket()}, may be null
+     * @return an object of the {@link SpeedLimiter} type
+     */
+    public SpeedLimiter limiterFor(URL source, TokenBucket taskBucket) {
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        if (globalBucket != null) {
+            buckets.add(globalBucket);
+        }
+        String host = source.getHost().toLowerCase();
+        long limit = hostSpeedLimits.getOrDefault(host, hostSpeedLimit);
+        if (limit > 0) {
+            buckets.add(hostBuckets.computeIfAbsent(host, key -> new TokenBucket(limit)));
+        }
+        if (taskBucket != null) {
+            buckets.add(taskBucket);
+        }
+        return new SpeedLimiter(buckets);
+    }
+}
@@ -1,13 +1,27 @@
 package org.kolokolov.fileloader.service;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.commons.cli.ParseException;
@@ -20,6 +34,8 @@ import org.apache.commons.io.FileUtils;
  */
 public class TaskFileParser {
 
+    private int chunkSize = 16 * 1024 * 1024; // bytes
+
     /**
      * Parses the task file and returns a set of objects of {@link TaskDescription} type
      * produced of its lines.
@@ -50,6 +66,302 @@ public class TaskFileParser {
         return taskSet;
     }
     
+    /**
+     * Reads the task file line by line and passes every task description to the consumer as soon as its line has been
+     * read, so the whole file is never held in memory. Repeated lines are skipped. A line mapping a target file name
+     * already mapped on a different link is reported and skipped, as the tasks read before it may have been started.
+     * 
+     * @param file a task file to be parsed
+     * @param consumer the consumer of the task descriptions
+     * @throws IOException
+     */
+    public void streamTaskFile(File file, Consumer<TaskDescription> consumer) throws IOException {
+        if (!file.exists() || !file.canRead()) {
+            String errorMsg = String.format("Task file '%s' does not exist or cannot be read%n", file.getName());
+            throw new FileNotFoundException(errorMsg);
+        }
+        Map<String, String> targetFiles = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                TaskDescription taskDescription = splitLine(line);
+                if (taskDescription == null) {
+                    continue;
+                }
+                String url = targetFiles.putIfAbsent(taskDescription.getFile(), taskDescription.getUrl());
+                if (url == null) {
+                    consumer.accept(taskDescription);
+                } else if (!url.equals(taskDescription.getUrl())) {
+                    System.out.printf("File name '%s' mapped on different links has been found%n",
+                            taskDescription.getFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the size of the chunks the task file is split into by {@link #parseTaskStore(File)}.
+     *
+     * @param chunkSize the chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(chunkSize, 1);
+    }
+
+    /**
+     * Reads the task file into a {@link TaskStore}, so no object is kept for a task line and the lines of a link are
+     * merged into a single task as they are read. The file is memory-mapped in chunks that end at a line break. The
+     * chunks are parsed from the mapped bytes on the fork-join pool, a few of them ahead of the one being added to the
+     * store, and are added to the store in the file order.
+     *
+     * @param file a task file to be parsed
+     * @return the store holding the tasks of the file
+     * @throws IOException
+     * @throws ParseException if the file includes target file names mapped on different links
+     */
+    public TaskStore parseTaskStore(File file) throws IOException, ParseException {
+        if (!file.exists() || !file.canRead()) {
+            String errorMsg = String.format("Task file '%s' does not exist or cannot be read%n", file.getName());
+            throw new FileNotFoundException(errorMsg);
+        }
+        TaskStore store = new TaskStore();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            Deque<ChunkTask> chunks = new ArrayDeque<>();
+            long position = 0;
+            long lineNumber = 1;
+            while (position < channel.size() || !chunks.isEmpty()) {
+                while (position < channel.size() && chunks.size() <= parallelism) {
+                    long end = chunkEnd(channel, position + chunkSize);
+                    ChunkTask chunk = new ChunkTask(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            end - position));
+                    chunk.fork();
+                    chunks.add(chunk);
+                    position = end;
+                }
+                lineNumber = addChunk(store, chunks.poll().join(), lineNumber);
+            }
+        }
+        if (store.getConflicts() > 0) {
+            String errorMsg = String.format("Task file '%s' includes target file duplications%n", file.getName());
+            throw new ParseException(errorMsg);
+        }
+        return store;
+    }
+
+    /**
+     * Finds the end of the chunk, that is the position following the first line break at or after the nominal end.
+     */
+    private long chunkEnd(FileChannel channel, long nominalEnd) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = nominalEnd - 1;
+        while (position < channel.size()) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += count;
+        }
+        return channel.size();
+    }
+
+    /**
+     * Adds the parsed lines of a chunk to the store, reporting the errors of its lines.
+     *
+     * @return the number of the first line of the next chunk
+     */
+    private long addChunk(TaskStore store, ParsedChunk chunk, long firstLine) {
+        int[] bounds = chunk.bounds;
+        int error = 0;
+        for (int line = 0; line < chunk.lineCount; line++) {
+            if (error < chunk.errorLines.size() && chunk.errorLines.get(error) == line) {
+                System.out.printf("Error processing line %d: %s%n", firstLine + line, chunk.errors.get(error++));
+                continue;
+            }
+            int entry = chunk.entryOf(line);
+            if (entry < 0) {
+                continue;
+            }
+            int url = entry * 4;
+            if (!store.add(chunk.bytes, bounds[url], bounds[url + 1] - bounds[url], chunk.bytes, bounds[url + 2],
+                    bounds[url + 3] - bounds[url + 2], chunk.checksums.get(entry), chunk.sizeOf(entry),
+                    chunk.mirrors.getOrDefault(entry, Collections.emptyList()))) {
+                System.out.printf("File name '%s' mapped on different links has been found at line %d%n",
+                        chunk.decode(bounds[url + 2], bounds[url + 3]), firstLine + line);
+            }
+        }
+        return firstLine + chunk.lineCount;
+    }
+
+    /**
+     * The class designed for parsing a chunk of the task file on the fork-join pool. The chunk is parsed from its
+     * mapped bytes, so it is never copied to the heap.
+     *
+     * @author kolokolov
+     */
+    private static class ChunkTask extends RecursiveTask<ParsedChunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient MappedByteBuffer buffer;
+
+        ChunkTask(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected ParsedChunk compute() {
+            ParsedChunk chunk = new ParsedChunk(buffer);
+            chunk.parseLines();
+            return chunk;
+        }
+    }
+
+    /**
+     * The class designed for parsing the lines of a chunk of the task file from its bytes and holding them. The bytes
+     * are read by absolute positions. The URL and the target file name of a line are kept as their bounds in the
+     * bytes of the chunk, and only the optional attributes are decoded. The bounds of the URL and the file name of the
+     * n-th task line are kept at 4n of the bounds array, the rare attributes are kept in maps by the task line.
+     *
+     * @author kolokolov
+     */
+    private static class ParsedChunk {
+        private final ByteBuffer bytes;
+        private int lineCount;
+        private int[] bounds = new int[64];
+        private int[] entryLines = new int[16];
+        private int entryCount;
+        private final Map<Integer, FileChecksum> checksums = new HashMap<>();
+        private final Map<Integer, Long> sizes = new HashMap<>();
+        private final Map<Integer, List<String>> mirrors = new HashMap<>();
+        private final List<Integer> errorLines = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        private int nextEntry;
+
+        ParsedChunk(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        void parseLines() {
+            int length = bytes.limit();
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && bytes.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                parseLine(lineStart, lineEnd);
+                lineCount++;
+                lineStart = next;
+            }
+        }
+
+        private void parseLine(int start, int end) {
+            int urlStart = skipSpaces(start, end);
+            if (urlStart == end) {
+                return;
+            }
+            int urlEnd = nextSpace(urlStart, end);
+            int fileStart = skipSpaces(urlEnd, end);
+            int fileEnd = nextSpace(fileStart, end);
+            if (fileStart == end) {
+                addError(decode(start, end));
+                return;
+            }
+            FileChecksum checksum = null;
+            long size = -1;
+            List<String> lineMirrors = new ArrayList<>();
+            try {
+                for (int attributeStart = skipSpaces(fileEnd, end); attributeStart < end;) {
+                    int attributeEnd = nextSpace(attributeStart, end);
+                    String attribute = decode(attributeStart, attributeEnd);
+                    if (attribute.startsWith("size:")) {
+                        size = Long.parseLong(attribute.substring("size:".length()));
+                    } else if (attribute.startsWith("mirror:")) {
+                        lineMirrors.add(attribute.substring("mirror:".length()));
+                    } else {
+                        checksum = FileChecksum.parse(attribute);
+                    }
+                    attributeStart = skipSpaces(attributeEnd, end);
+                }
+            } catch (IllegalArgumentException iae) {
+                addError(decode(start, end) + ": " + iae.getMessage());
+                return;
+            }
+            addEntry(urlStart, urlEnd, fileStart, fileEnd, checksum, size, lineMirrors);
+        }
+
+        private int skipSpaces(int position, int end) {
+            while (position < end && bytes.get(position) == ' ') {
+                position++;
+            }
+            return position;
+        }
+
+        private int nextSpace(int position, int end) {
+            while (position < end && bytes.get(position) != ' ') {
+                position++;
+            }
+            return position;
+        }
+
+        String decode(int start, int end) {
+            byte[] string = new byte[end - start];
+            bytes.get(start, string);
+            return new String(string, StandardCharsets.UTF_8);
+        }
+
+        void addEntry(int urlStart, int urlEnd, int fileStart, int fileEnd, FileChecksum checksum, long size,
+                List<String> entryMirrors) {
+            if (entryCount == entryLines.length) {
+                entryLines = Arrays.copyOf(entryLines, entryCount * 2);
+                bounds = Arrays.copyOf(bounds, entryCount * 8);
+            }
+            entryLines[entryCount] = lineCount;
+            bounds[entryCount * 4] = urlStart;
+            bounds[entryCount * 4 + 1] = urlEnd;
+            bounds[entryCount * 4 + 2] = fileStart;
+            bounds[entryCount * 4 + 3] = fileEnd;
+            if (checksum != null) {
+                checksums.put(entryCount, checksum);
+            }
+            if (size >= 0) {
+                sizes.put(entryCount, size);
+            }
+            if (!entryMirrors.isEmpty()) {
+                mirrors.put(entryCount, entryMirrors);
+            }
+            entryCount++;
+        }
+
+        void addError(String error) {
+            errorLines.add(lineCount);
+            errors.add(error);
+        }
+
+        /**
+         * Returns the task line parsed from the line, the lines are supposed to be asked in ascending order.
+         *
+         * @return the number of the task line or -1 if the line is empty
+         */
+        int entryOf(int line) {
+            if (nextEntry < entryCount && entryLines[nextEntry] == line) {
+                return nextEntry++;
+            }
+            return -1;
+        }
+
+        long sizeOf(int entry) {
+            return sizes.getOrDefault(entry, -1L);
+        }
+    }
+
     /**
      * Processes the list of the task file lines to set of objects
      * of the {@link TaskDescription} type.
@@ -64,21 +376,28 @@ public class TaskFileParser {
     }
     
     /**
-     * Splits a line of the task file into two parts and builds an object of the
-     * {@link TaskDescription} class.
+     * Splits a line of the task file into parts and builds an object of the {@link TaskDescription} class. The parts
+     * are parsed from the UTF-8 bytes of the line the same way the lines are parsed by {@link #parseTaskStore(File)}.
      * 
-     * @param line a line of the task file. It is supposed to consist of URL and target file name 
-     * @return an object of the {@link TaskDescription} type
+     * @param line a line of the task file. It is supposed to consist of URL and target file name followed by optional
+     *            attributes: the checksum of the file, e.g. 'sha256:9f86d0...' or 'crc32c:e3069283', the size hint
+     *            of the file in bytes, e.g. 'size:1048576', and any number of mirror URLs of the file, e.g.
+     *            'mirror:http://mirror.example.com/file.zip'
+     * @return an object of the {@link TaskDescription} type or null if the line is empty or can not be parsed
      */
     public TaskDescription splitLine(String line) {
-        TaskDescription taskDescription = null;
-        String[] pair = line.split(" ");
-        if (pair.length == 2) {
-            taskDescription = new TaskDescription(pair[0], pair[1]);
-        } else {
-            System.out.printf("Error processing line %s%n", line);
+        ParsedChunk chunk = new ParsedChunk(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        chunk.parseLines();
+        if (!chunk.errors.isEmpty()) {
+            System.out.printf("Error processing line %s%n", chunk.errors.get(0));
+            return null;
         }
-        return taskDescription;
+        if (chunk.entryCount == 0) {
+            return null;
+        }
+        int[] bounds = chunk.bounds;
+        return new TaskDescription(chunk.decode(bounds[0], bounds[1]), chunk.decode(bounds[2], bounds[3]),
+                chunk.checksums.get(0), chunk.sizeOf(0), chunk.mirrors.getOrDefault(0, new ArrayList<>()));
     }
 
     /**
@@ -99,19 +418,38 @@ public class TaskFileParser {
     }
 
     /**
-     * Class is designed for task description storing.
+     * Class is designed for task description storing. The checksum, the size hint and the mirrors are not a part of
+     * the task identity.
      * 
      * @author kolokolov
      */
     public static class TaskDescription {
         private String url;
         private String file;
+        private FileChecksum checksum;
+        private long size = -1;
+        private List<String> mirrors = Collections.emptyList();
 
         public TaskDescription(String url, String file) {
             this.url = url;
             this.file = file;
         }
 
+        public TaskDescription(String url, String file, FileChecksum checksum) {
+            this(url, file);
+            this.checksum = checksum;
+        }
+
+        public TaskDescription(String url, String file, FileChecksum checksum, long size) {
+            this(url, file, checksum);
+            this.size = size;
+        }
+
+        public TaskDescription(String url, String file, FileChecksum checksum, long size, List<String> mirrors) {
+            this(url, file, checksum, size);
+            this.mirrors = mirrors;
+        }
+
         public String getUrl() {
             return url;
         }
@@ -120,6 +458,27 @@ public class TaskFileParser {
             return file;
         }
 
+        /**
+         * @return the expected checksum of the file or null if it has not been set
+         */
+        public FileChecksum getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return the size hint of the file in bytes or -1 if it has not been set
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the other URLs the file is available from, the list is empty if none of them has been set
+         */
+        public List<String> getMirrors() {
+            return mirrors;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
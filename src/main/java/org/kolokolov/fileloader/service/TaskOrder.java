@@ -0,0 +1,51 @@
+package org.kolokolov.fileloader.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * The orders of starting the downloads. Ordering the downloads by size lets the threads finish at about the same
+ * time: if the largest downloads are started first (longest processing time first), no huge download is started at
+ * the end of the run while the other threads are idle. Starting the smallest downloads first gives the most files in
+ * the shortest time. A download of unknown size is considered the largest one.
+ *
+ * @author kolokolov
+ */
+public enum TaskOrder {
+    NONE, LPT, SPT;
+
+    /**
+     * Returns the task order with the passed name ignoring its case.
+     *
+     * @param name the task order name
+     * @return the task order
+     * @throws IllegalArgumentException if there is no task order with such name
+     */
+    public static TaskOrder of(String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Returns the tasks sorted in this order. The tasks of the same size keep their order.
+     *
+     * @param tasks the tasks to be sorted
+     * @param size the function returning the size of a task in bytes or a negative value if it is unknown
+     * @return a new list of the tasks
+     */
+    public <T> List<T> sort(Collection<T> tasks, ToLongFunction<T> size) {
+        List<T> sortedTasks = new ArrayList<>(tasks);
+        Comparator<T> bySize = Comparator.comparingLong(task -> {
+            long taskSize = size.applyAsLong(task);
+            return taskSize < 0 ? Long.MAX_VALUE : taskSize;
+        });
+        if (this == LPT) {
+            sortedTasks.sort(bySize.reversed());
+        } else if (this == SPT) {
+            sortedTasks.sort(bySize);
+        }
+        return sortedTasks;
+    }
+}
@@ -0,0 +1,308 @@
+package org.kolokolov.fileloader.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class designed for storing the tasks of a huge task file in a compact form. The URLs and the file names are
+ * kept as UTF-8 bytes in large byte pages and are deduplicated by open addressing hash tables of int slots, so no
+ * object is created for a task line and the heap used by a task is its bytes and a few dozen bytes of array slots.
+ * <p>
+ * A task is a distinct URL and holds all the file names mapped on it, so a web resource is downloaded once. A
+ * repeated line is ignored. A file name mapped on a different URL than before is counted as a conflict and is not
+ * added. The checksums and mirrors are rare, so they are kept in a map by the task number, and the sizes are kept in a
+ * long array.
+ * <p>
+ * The store is filled by a single thread and is read only after it has been filled.
+ *
+ * @author kolokolov
+ */
+public class TaskStore {
+
+    private final ByteStringTable urls = new ByteStringTable();
+    private final ByteStringTable files = new ByteStringTable();
+
+    private int[] firstFiles = new int[1024];
+    private long[] sizes = new long[1024];
+    private int[] fileTasks = new int[1024];
+    private int[] nextFiles = new int[1024];
+    private final Map<Integer, FileChecksum> checksums = new HashMap<>();
+    private final Map<Integer, List<String>> mirrors = new HashMap<>();
+    private int conflicts;
+
+    /**
+     * Adds a task line.
+     *
+     * @param url an absolute URL of a web resource representing a file
+     * @param file the target file name
+     * @param checksum the expected checksum of the file, may be null
+     * @param size the size hint of the file in bytes or -1 if it is unknown
+     * @param fileMirrors the other URLs the file is available from, may be empty
+     * @return false if the file name has already been mapped on a different URL
+     */
+    public boolean add(String url, String file, FileChecksum checksum, long size, List<String> fileMirrors) {
+        ByteBuffer urlBytes = ByteBuffer.wrap(url.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer fileBytes = ByteBuffer.wrap(file.getBytes(StandardCharsets.UTF_8));
+        return add(urlBytes, 0, urlBytes.capacity(), fileBytes, 0, fileBytes.capacity(), checksum, size,
+                fileMirrors);
+    }
+
+    /**
+     * Adds a task line whose URL and target file name are given as UTF-8 bytes, e.g. of a memory-mapped task file.
+     * The bytes are read by absolute positions, so the positions of the buffers are not changed.
+     *
+     * @param urlBytes the buffer holding the URL
+     * @param urlOffset the offset of the URL
+     * @param urlLength the length of the URL
+     * @param fileBytes the buffer holding the file name
+     * @param fileOffset the offset of the file name
+     * @param fileLength the length of the file name
+     * @param checksum the expected checksum of the file, may be null
+     * @param size the size hint of the file in bytes or -1 if it is unknown
+     * @param fileMirrors the other URLs the file is available from, may be empty
+     * @return false if the file name has already been mapped on a different URL
+     */
+    public boolean add(ByteBuffer urlBytes, int urlOffset, int urlLength, ByteBuffer fileBytes, int fileOffset,
+            int fileLength, FileChecksum checksum, long size, List<String> fileMirrors) {
+        int knownFile = files.find(fileBytes, fileOffset, fileLength);
+        if (knownFile >= 0) {
+            if (fileTasks[knownFile] == urls.find(urlBytes, urlOffset, urlLength)) {
+                return true;
+            }
+            conflicts++;
+            return false;
+        }
+        int taskCount = urls.size();
+        int task = urls.intern(urlBytes, urlOffset, urlLength);
+        if (task == taskCount) {
+            if (task == firstFiles.length) {
+                firstFiles = Arrays.copyOf(firstFiles, task * 2);
+                sizes = Arrays.copyOf(sizes, task * 2);
+            }
+            firstFiles[task] = -1;
+            sizes[task] = -1;
+        }
+        int file = files.intern(fileBytes, fileOffset, fileLength);
+        if (file == fileTasks.length) {
+            fileTasks = Arrays.copyOf(fileTasks, file * 2);
+            nextFiles = Arrays.copyOf(nextFiles, file * 2);
+        }
+        fileTasks[file] = task;
+        nextFiles[file] = firstFiles[task];
+        firstFiles[task] = file;
+        sizes[task] = Math.max(sizes[task], size);
+        if (checksum != null) {
+            checksums.putIfAbsent(task, checksum);
+        }
+        if (!fileMirrors.isEmpty()) {
+            List<String> taskMirrors = mirrors.computeIfAbsent(task, key -> new ArrayList<>());
+            fileMirrors.stream().filter(mirror -> !taskMirrors.contains(mirror)).forEach(taskMirrors::add);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of distinct URLs
+     */
+    public int getTaskCount() {
+        return urls.size();
+    }
+
+    /**
+     * @return the number of file names mapped on different URLs that have not been added
+     */
+    public int getConflicts() {
+        return conflicts;
+    }
+
+    public String getUrl(int task) {
+        return urls.get(task);
+    }
+
+    /**
+     * @param task the task number
+     * @return the file names mapped on the URL of the task in the order they have been added
+     */
+    public List<String> getFiles(int task) {
+        List<String> taskFiles = new ArrayList<>(1);
+        for (int file = firstFiles[task]; file >= 0; file = nextFiles[file]) {
+            taskFiles.add(files.get(file));
+        }
+        Collections.reverse(taskFiles);
+        return taskFiles;
+    }
+
+    public FileChecksum getChecksum(int task) {
+        return checksums.get(task);
+    }
+
+    /**
+     * @param task the task number
+     * @return the largest size hint of the files of the task in bytes or -1 if it is unknown
+     */
+    public long getSize(int task) {
+        return sizes[task];
+    }
+
+    public void setSize(int task, long size) {
+        sizes[task] = size;
+    }
+
+    public List<String> getMirrors(int task) {
+        return mirrors.getOrDefault(task, Collections.emptyList());
+    }
+
+    /**
+     * The class designed for storing distinct byte strings and numbering them in the order they have been added.
+     * Every string is written to a byte page preceded by its length, and its position is kept in a long array. The
+     * hash table keeps the string numbers in an int array and is searched by linear probing.
+     *
+     * @author kolokolov
+     */
+    static class ByteStringTable {
+        private static final int PAGE_SIZE = 1 << 20; // bytes
+
+        private byte[][] pages = new byte[1][];
+        private int pageCount;
+        private int pagePosition;
+        private long[] positions = new long[1024];
+        private int[] slots = new int[2048];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the number of the string, adding the string if it is new.
+         *
+         * @param bytes the buffer holding the string
+         * @param offset the offset of the string
+         * @param length the length of the string
+         * @return the number of the string
+         */
+        public int intern(ByteBuffer bytes, int offset, int length) {
+            int slot = slotOf(bytes, offset, length);
+            if (slots[slot] != 0) {
+                return slots[slot] - 1;
+            }
+            int id = append(bytes, offset, length);
+            slots[slot] = id + 1;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        /**
+         * @param bytes the buffer holding the string
+         * @param offset the offset of the string
+         * @param length the length of the string
+         * @return the number of the string or -1 if it has not been added
+         */
+        public int find(ByteBuffer bytes, int offset, int length) {
+            return slots[slotOf(bytes, offset, length)] - 1;
+        }
+
+        /**
+         * @return the slot holding the string or the empty slot the string would be put in
+         */
+        private int slotOf(ByteBuffer bytes, int offset, int length) {
+            int mask = slots.length - 1;
+            int slot = hash(bytes, offset, length) & mask;
+            while (slots[slot] != 0 && !equalsAt(slots[slot] - 1, bytes, offset, length)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * @param id the number of the string
+         * @return the string decoded from UTF-8
+         */
+        public String get(int id) {
+            byte[] page = pages[(int) (positions[id] >>> 32)];
+            int position = (int) positions[id];
+            int length = readLength(page, position);
+            return new String(page, position + 4, length, StandardCharsets.UTF_8);
+        }
+
+        private int append(ByteBuffer bytes, int offset, int length) {
+            if (pageCount == 0 || pagePosition + length + 4 > pages[pageCount - 1].length) {
+                if (pageCount == pages.length) {
+                    pages = Arrays.copyOf(pages, pageCount * 2);
+                }
+                pages[pageCount++] = new byte[Math.max(PAGE_SIZE, length + 4)];
+                pagePosition = 0;
+            }
+            byte[] page = pages[pageCount - 1];
+            page[pagePosition] = (byte) (length >>> 24);
+            page[pagePosition + 1] = (byte) (length >>> 16);
+            page[pagePosition + 2] = (byte) (length >>> 8);
+            page[pagePosition + 3] = (byte) length;
+            bytes.get(offset, page, pagePosition + 4, length);
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size] = (long) (pageCount - 1) << 32 | pagePosition;
+            pagePosition += length + 4;
+            return size++;
+        }
+
+        private boolean equalsAt(int id, ByteBuffer bytes, int offset, int length) {
+            byte[] page = pages[(int) (positions[id] >>> 32)];
+            int position = (int) positions[id] + 4;
+            if (readLength(page, position - 4) != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (page[position + i] != bytes.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            int[] newSlots = new int[slots.length * 2];
+            int mask = newSlots.length - 1;
+            ByteBuffer page = null;
+            for (int id = 0; id < size; id++) {
+                byte[] pageBytes = pages[(int) (positions[id] >>> 32)];
+                if (page == null || page.array() != pageBytes) {
+                    page = ByteBuffer.wrap(pageBytes);
+                }
+                int position = (int) positions[id];
+                int slot = hash(page, position + 4, readLength(pageBytes, position)) & mask;
+                while (newSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newSlots[slot] = id + 1;
+            }
+            slots = newSlots;
+        }
+
+        private static int readLength(byte[] page, int position) {
+            return (page[position] & 0xff) << 24 | (page[position + 1] & 0xff) << 16
+                    | (page[position + 2] & 0xff) << 8 | page[position + 3] & 0xff;
+        }
+
+        /**
+         * Calculates the FNV-1a hash of the bytes, mixed so that the low bits used by the table depend on all of
+         * them.
+         */
+        private static int hash(ByteBuffer bytes, int offset, int length) {
+            int hash = 0x811c9dc5;
+            for (int i = offset; i < offset + length; i++) {
+                hash = (hash ^ bytes.get(i)) * 0x01000193;
+            }
+            return hash ^ hash >>> 16;
+        }
+    }
+}
@@ -1,28 +1,164 @@
 package org.kolokolov.fileloader.service;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * The service is designed to provide a method execution in separate thread. It creates thread pool with size depending
- * on set value. If no proper thread number value was passed than default value is used.
+ * on set value. If no proper thread number value was passed than default value is used. Segments of the files
+ * downloaded by several connections are executed in a separate pool, so a download thread waiting for its segments
+ * never occupies a thread the segments need.
+ * <p>
+ * With the virtual thread engine every download and every segment gets a virtual thread of its own, so thousands of
+ * downloads can be in flight without occupying platform threads, and the number of downloads performed at once is
+ * limited by a semaphore instead of the pool size. Virtual threads are available since Java 21, on older runtimes the
+ * fixed thread pool is used instead.
+ * <p>
+ * The downloaded data is written to the files by a small pool of platform write threads, so the download threads go
+ * on reading from the network while the disk is busy. The write pool is created on the first write and its threads
+ * are daemons, so a service that has never been shut down does not keep the JVM running.
  * 
  * @author kolokolov
  */
 public class ThreadService {
+
+    /**
+     * The ways of executing downloads.
+     */
+    public enum Engine {
+        POOL, VIRTUAL;
+
+        /**
+         * Returns the engine with the passed name ignoring its case.
+         *
+         * @param name the engine name
+         * @return the engine
+         * @throws IllegalArgumentException if there is no engine with such name
+         */
+        public static Engine of(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
     private final int DEFAULT_THREAD_POOL_SIZE = 5;
+    private final int DEFAULT_WRITE_THREADS = 2;
     private ExecutorService downloadThreadPool;
+    private ExecutorService segmentThreadPool;
+    private ExecutorService writeThreadPool;
+    private int writeThreads = DEFAULT_WRITE_THREADS;
+    private DownloadPermits downloadPermits;
+    private Engine engine = Engine.POOL;
+    private int concurrency;
 
     public ThreadService(int threadPoolSize) {
-        this.downloadThreadPool = Executors
-                .newFixedThreadPool(threadPoolSize > 0 ? threadPoolSize : DEFAULT_THREAD_POOL_SIZE);
+        this(threadPoolSize, Engine.POOL);
+    }
+
+    /**
+     * Creates an instance of the ThreadService class using the passed engine.
+     * 
+     * @param concurrency the thread pool size or, with the virtual thread engine, the number of downloads performed at
+     *            once. If this value is equal or less than 0, than default value is used.
+     * @param engine the way of executing downloads
+     */
+    public ThreadService(int concurrency, Engine engine) {
+        int downloadsNumber = concurrency > 0 ? concurrency : DEFAULT_THREAD_POOL_SIZE;
+        this.concurrency = downloadsNumber;
+        if (engine == Engine.VIRTUAL) {
+            this.downloadThreadPool = newVirtualThreadPerTaskExecutor();
+        }
+        if (this.downloadThreadPool != null) {
+            this.engine = Engine.VIRTUAL;
+            this.segmentThreadPool = newVirtualThreadPerTaskExecutor();
+            this.downloadPermits = new DownloadPermits(downloadsNumber);
+        } else {
+            if (engine == Engine.VIRTUAL) {
+                System.out.printf("Virtual threads are not supported by Java %s, thread pool is used%n",
+                        System.getProperty("java.version"));
+            }
+            this.downloadThreadPool = Executors.newFixedThreadPool(downloadsNumber);
+            this.segmentThreadPool = Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task. As the application is compiled for runtimes
+     * without virtual threads, the factory method is looked up reflectively.
+     * 
+     * @return the executor or null if virtual threads are not supported by the runtime
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the engine actually used
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the number of downloads performed at once
+     */
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Changes the number of downloads performed at once. With the thread pool the pool is resized: new threads are
+     * started at once for the waiting downloads, and the extra threads finish after their current downloads. With
+     * the virtual thread engine the number of download permits is changed.
+     * 
+     * @param concurrency the new number of downloads performed at once, it must be greater than 0
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        if (concurrency < 1 || concurrency == this.concurrency) {
+            return;
+        }
+        if (downloadPermits != null) {
+            if (concurrency > this.concurrency) {
+                downloadPermits.release(concurrency - this.concurrency);
+            } else {
+                downloadPermits.reducePermits(this.concurrency - concurrency);
+            }
+        } else {
+            ThreadPoolExecutor threadPool = (ThreadPoolExecutor) downloadThreadPool;
+            if (concurrency > this.concurrency) {
+                threadPool.setMaximumPoolSize(concurrency);
+                threadPool.setCorePoolSize(concurrency);
+            } else {
+                threadPool.setCorePoolSize(concurrency);
+                threadPool.setMaximumPoolSize(concurrency);
+            }
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return the number of downloads waiting for a thread or, with the virtual thread engine, for a permit
+     */
+    public int getWaitingDownloads() {
+        if (downloadPermits != null) {
+            return downloadPermits.getQueueLength();
+        }
+        return ((ThreadPoolExecutor) downloadThreadPool).getQueue().size();
     }
 
     /**
      * Provides execution of passed lambda expression within a new thread. The new thread is received from the
-     * pool if there is spare one, and returns to the pool after lambda expression execution.
+     * pool if there is spare one, and returns to the pool after lambda expression execution. With the virtual thread
+     * engine a new virtual thread executes the lambda expression as soon as a download permit is available.
      * 
      * @param callable instance of {@link Callable<Boolean>} functional interface or lambda expression that is supposed to
      *            return a boolean value
@@ -30,7 +166,67 @@ public class ThreadService {
      *         execution.
      */
     public Future<Boolean> executeInNewThread(Callable<Boolean> collable) {
-        return downloadThreadPool.submit(collable);
+        if (downloadPermits == null) {
+            return downloadThreadPool.submit(collable);
+        }
+        return downloadThreadPool.submit(() -> {
+            downloadPermits.acquire();
+            try {
+                return collable.call();
+            } finally {
+                downloadPermits.release();
+            }
+        });
+    }
+
+    /**
+     * Provides execution of passed lambda expression downloading a file segment within a new thread of the segment
+     * thread pool.
+     * 
+     * @param callable instance of {@link Callable<Long>} functional interface or lambda expression that is supposed to
+     *            return number of bytes downloaded
+     * @return an object with the Future interface that returns the result returned by the lambda expression after its
+     *         execution.
+     */
+    public Future<Long> executeSegment(Callable<Long> callable) {
+        return segmentThreadPool.submit(callable);
+    }
+
+    /**
+     * Sets the number of the threads writing the downloaded data to the files.
+     * 
+     * @param writeThreads number of the write threads, if it is 0 the data is written by the download threads
+     */
+    public synchronized void setWriteThreads(int writeThreads) {
+        if (writeThreadPool != null) {
+            writeThreadPool.shutdown();
+            writeThreadPool = null;
+        }
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * @return true if the downloaded data is written by the write threads
+     */
+    public synchronized boolean hasWriteThreads() {
+        return writeThreads > 0;
+    }
+
+    /**
+     * Provides execution of passed lambda expression writing downloaded data within a thread of the write thread
+     * pool.
+     * 
+     * @param runnable instance of {@link Runnable} functional interface or void lambda expression.
+     */
+    public synchronized void executeWrite(Runnable runnable) {
+        if (writeThreadPool == null) {
+            writeThreadPool = Executors.newFixedThreadPool(writeThreads, writeRunnable -> {
+                Thread thread = new Thread(writeRunnable, "file-writes");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        writeThreadPool.execute(runnable);
     }
 
     /**
@@ -48,5 +244,28 @@ public class ThreadService {
     
     public void shutdownDownloadThreadPool() {
         downloadThreadPool.shutdown();
+        segmentThreadPool.shutdown();
+        synchronized (this) {
+            if (writeThreadPool != null) {
+                writeThreadPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The semaphore limiting the number of downloads performed at once with the virtual thread engine. The number of
+     * permits can be reduced while they are taken.
+     */
+    private static class DownloadPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        public DownloadPermits(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
     }
 }
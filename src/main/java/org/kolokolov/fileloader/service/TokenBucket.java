@@ -0,0 +1,89 @@
+package org.kolokolov.fileloader.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The class designed for download speed limiting. The token bucket is not filled by a separate thread: its state is
+ * kept as the time at which the bucket would be full again, and tokens are refilled lazily from
+ * {@link System#nanoTime()} every time they are taken. The emptyBucket() method takes the tokens with a single
+ * compare-and-set operation and, if the bucket did not hold enough of them, parks the calling thread for exactly the time
+ * needed to refill the missing ones, so no lock is held and no waiting thread is woken up in vain. It is supposed to be
+ * used within a method that reads data from input stream, thus limiting number of data readings depending on set speed
+ * limit value.
+ *
+ * @author kolokolov
+ */
+public class TokenBucket {
+    private final long BUCKET_CAPACITY_TIME = TimeUnit.MILLISECONDS.toNanos(50); // ns
+    private final long SPEED_LIMIT; // bytes/s
+
+    /**
+     * The time when all the tokens taken so far are refilled. The bucket is full if this time has passed.
+     */
+    private final AtomicLong refilledTime = new AtomicLong(System.nanoTime());
+
+    /**
+     * Creates an instance of the TokenBucket class.
+     *
+     * @param speedLimit speed limit in bits/s, it must be greater than 0
+     */
+    public TokenBucket(long speedLimit) {
+        this.SPEED_LIMIT = Math.max(speedLimit / 8, 1);
+    }
+
+    /**
+     * @return speed limit in bytes/s
+     */
+    public long getSpeedLimit() {
+        return SPEED_LIMIT;
+    }
+
+    /**
+     * Takes the passed number of tokens from the bucket even if it does not hold enough of them and returns the time
+     * the caller has to wait until the missing tokens are refilled.
+     *
+     * @param byteCount number of tokens to be taken
+     * @return time to wait in nanoseconds, 0 if the bucket held enough tokens
+     */
+    public long reserve(long byteCount) {
+        long tokensTime = byteCount * 1_000_000_000L / SPEED_LIMIT;
+        while (true) {
+            long now = System.nanoTime();
+            long current = refilledTime.get();
+            long next = Math.max(current, now - BUCKET_CAPACITY_TIME) + tokensTime;
+            if (refilledTime.compareAndSet(current, next)) {
+                return Math.max(next - now - BUCKET_CAPACITY_TIME, 0);
+            }
+        }
+    }
+
+    /**
+     * Takes the passed number of tokens from the bucket. If the bucket does not hold enough tokens the method stops
+     * its thread until the missing tokens are refilled.
+     *
+     * @param byteCount number of tokens to be taken
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void emptyBucket(int byteCount) throws InterruptedException {
+        await(reserve(byteCount));
+    }
+
+    /**
+     * Parks the current thread for the passed time.
+     *
+     * @param waitTime time to wait in nanoseconds
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public static void await(long waitTime) throws InterruptedException {
+        long deadline = System.nanoTime() + waitTime;
+        while (waitTime > 0) {
+            LockSupport.parkNanos(waitTime);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitTime = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.kolokolov.fileloader.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The class designed for sharing the downloads of a task file between several worker processes. The coordinator
+ * listens to a TCP port, hands out a task to every worker asking for one and counts the results reported by the
+ * workers. A task handed out is leased to its worker: if the worker disconnects or is not heard from within the lease
+ * time, its tasks are handed out to the other workers again.
+ * <p>
+ * If the global speed limit is set, it is shared by all the workers: a worker takes tokens from the coordinator's
+ * {@link TokenBucket} in small grants and waits for the time the coordinator has computed for every grant.
+ * <p>
+ * The workers talk to the coordinator with text lines, every request is answered with a single line:
+ * <ul>
+ * <li>HELLO is answered with WELCOME, the global speed limit in bits/s and the lease time in ms;</li>
+ * <li>NEXT is answered with TASK and the task line, with WAIT if all the remaining tasks are leased or with DONE;</li>
+ * <li>RESULT, the task number, true or false and the downloaded size is answered with OK;</li>
+ * <li>GRANT and a number of bytes is answered with GRANTED and the time to wait in nanoseconds;</li>
+ * <li>PING is answered with OK.</li>
+ * </ul>
+ * <p>
+ * The workers are not authenticated, so the coordinator listens to the loopback interface unless it is bound to
+ * another address on purpose. It must not be bound to an interface reachable from an untrusted network, as anyone
+ * connecting to it learns the task URLs and file names and can report the tasks as finished.
+ *
+ * @author kolokolov
+ */
+public class WorkCoordinator {
+
+    public static final long DEFAULT_LEASE_TIME = 30_000; // ms
+
+    private final long speedLimit;
+    private final TokenBucket globalBucket;
+    private final int tasksTotal;
+    private final Deque<WorkItem> pendingItems;
+    private final List<WorkerConnection> workers = new CopyOnWriteArrayList<>();
+    private long leaseTime = DEFAULT_LEASE_TIME;
+
+    private int completed;
+    private int failed;
+    private long downloadedSize;
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates an instance of the WorkCoordinator class.
+     *
+     * @param items the tasks to be handed out
+     * @param speedLimit the global speed limit in bits/s shared by all the workers, no limit if it is equal or less
+     *            than 0
+     */
+    public WorkCoordinator(List<WorkItem> items, long speedLimit) {
+        this.speedLimit = Math.max(speedLimit, 0);
+        this.globalBucket = speedLimit > 0 ? new TokenBucket(speedLimit) : null;
+        this.tasksTotal = items.size();
+        this.pendingItems = new ArrayDeque<>(items);
+    }
+
+    /**
+     * Sets the time a worker may stay silent before its tasks are handed out again.
+     *
+     * @param leaseTime the lease time in ms
+     */
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * Starts accepting the workers at the loopback interface.
+     *
+     * @param port the port number, 0 to take any free port
+     * @return the port the coordinator is bound to
+     * @throws IOException if the port can not be bound
+     */
+    public int start(int port) throws IOException {
+        return start(null, port);
+    }
+
+    /**
+     * Starts accepting the workers at the passed address.
+     *
+     * @param bindAddress the host name or the IP address of the interface, 0.0.0.0 for all the interfaces, the
+     *            loopback interface if it is null
+     * @param port the port number, 0 to take any free port
+     * @return the port the coordinator is bound to
+     * @throws IOException if the port can not be bound
+     */
+    public int start(String bindAddress, int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(bindAddress, port));
+        startDaemon(this::acceptWorkers, "coordinator");
+        startDaemon(this::expireLeases, "lease-reaper");
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits until the results of all the tasks have been reported.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (completed + failed < tasksTotal) {
+            wait();
+        }
+    }
+
+    /**
+     * Stops accepting the workers and disconnects the connected ones. The workers that are still connected are given
+     * a few seconds to ask for the next task and learn that all the tasks have been finished.
+     */
+    public void stop() {
+        try {
+            for (int i = 0; i < 40 && !workers.isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            System.out.printf("Error closing coordinator socket: %s%n", ioe.getMessage());
+        }
+        workers.forEach(WorkerConnection::close);
+    }
+
+    public int getTasksTotal() {
+        return tasksTotal;
+    }
+
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptWorkers() {
+        try {
+            while (true) {
+                WorkerConnection worker = new WorkerConnection(serverSocket.accept());
+                workers.add(worker);
+                startDaemon(worker::serve, "worker " + worker.name);
+            }
+        } catch (IOException ioe) {
+            // the coordinator has been stopped
+        }
+    }
+
+    /**
+     * Disconnects the workers that have not been heard from within the lease time, so their tasks are handed out
+     * again.
+     */
+    private void expireLeases() {
+        try {
+            while (!serverSocket.isClosed()) {
+                Thread.sleep(Math.max(leaseTime / 4, 10));
+                long now = System.currentTimeMillis();
+                for (WorkerConnection worker : workers) {
+                    if (now - worker.lastSeen > leaseTime) {
+                        System.out.printf("Lease of worker %s has expired%n", worker.name);
+                        worker.close();
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized String nextTask(WorkerConnection worker) {
+        if (completed + failed == tasksTotal) {
+            return "DONE";
+        }
+        WorkItem item = pendingItems.poll();
+        if (item == null) {
+            return "WAIT";
+        }
+        worker.items.add(item);
+        return "TASK\t" + item.encode();
+    }
+
+    private synchronized void countResult(WorkerConnection worker, long id, boolean succeeded, long size) {
+        if (!worker.items.removeIf(item -> item.getId() == id)) {
+            return;
+        }
+        if (succeeded) {
+            completed++;
+            downloadedSize += size;
+        } else {
+            failed++;
+        }
+        notifyAll();
+    }
+
+    private synchronized void redistribute(WorkerConnection worker) {
+        if (!worker.items.isEmpty()) {
+            System.out.printf("Worker %s has failed, %d tasks are handed out again%n", worker.name,
+                    worker.items.size());
+            worker.items.forEach(pendingItems::addFirst);
+            worker.items.clear();
+        }
+    }
+
+    /**
+     * The class designed for serving the requests of a single worker.
+     *
+     * @author kolokolov
+     */
+    private class WorkerConnection {
+        private final Socket socket;
+        private final String name;
+        private final List<WorkItem> items = new ArrayList<>();
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        public WorkerConnection(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteSocketAddress().toString();
+        }
+
+        public void serve() {
+            try (BufferedReader input = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter output = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                String request;
+                while ((request = input.readLine()) != null) {
+                    lastSeen = System.currentTimeMillis();
+                    output.println(respond(request.split(" ")));
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!(e instanceof SocketException)) {
+                    System.out.printf("Error serving worker %s: %s%n", name, e.getMessage());
+                }
+            } finally {
+                close();
+                workers.remove(this);
+                redistribute(this);
+            }
+        }
+
+        private String respond(String[] request) {
+            switch (request[0]) {
+            case "HELLO":
+                System.out.printf("Worker %s has connected%n", name);
+                return String.format("WELCOME %d %d", speedLimit, leaseTime);
+            case "NEXT":
+                return nextTask(this);
+            case "RESULT":
+                countResult(this, Long.parseLong(request[1]), Boolean.parseBoolean(request[2]),
+                        Long.parseLong(request[3]));
+                return "OK";
+            case "GRANT":
+                long waitTime = globalBucket == null ? 0 : globalBucket.reserve(Long.parseLong(request[1]));
+                return "GRANTED " + waitTime;
+            case "PING":
+                return "OK";
+            default:
+                return "ERROR unknown request " + request[0];
+            }
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // the socket is closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.kolokolov.fileloader.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class designed for storing a download task handed out by the {@link WorkCoordinator} to a worker. The task
+ * keeps all the files mapped on its URL, so a web resource is downloaded by one worker only. The file names are
+ * relative to the output folder of the worker. A task is sent over the network as a single line of tab separated
+ * fields.
+ *
+ * @author kolokolov
+ */
+public class WorkItem {
+
+    private final long id;
+    private final String url;
+    private final List<String> files;
+    private final FileChecksum checksum;
+    private final List<String> mirrors;
+
+    /**
+     * Creates an instance of the WorkItem class.
+     *
+     * @param id the task number unique within the coordinator
+     * @param url an absolute URL of a web resource representing a file
+     * @param files the names of the files mapped on the URL
+     * @param checksum the expected checksum of the web resource, may be null
+     * @param mirrors the other URLs the web resource is available from, may be empty
+     */
+    public WorkItem(long id, String url, List<String> files, FileChecksum checksum, List<String> mirrors) {
+        this.id = id;
+        this.url = url;
+        this.files = files;
+        this.checksum = checksum;
+        this.mirrors = mirrors;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public FileChecksum getChecksum() {
+        return checksum;
+    }
+
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * @return the line describing the task: its number, URL, checksum, mirrors separated with spaces and file names,
+     *         a missing checksum and missing mirrors are written as '-'
+     */
+    public String encode() {
+        StringBuilder line = new StringBuilder();
+        line.append(id).append('\t').append(url).append('\t').append(checksum == null ? "-" : checksum.toString())
+                .append('\t').append(mirrors.isEmpty() ? "-" : String.join(" ", mirrors));
+        for (String file : files) {
+            line.append('\t').append(file);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Restores the task from its line.
+     *
+     * @param line the line written by the {@link #encode()} method
+     * @return an object of the WorkItem type
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static WorkItem decode(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 5) {
+            throw new IllegalArgumentException(String.format("Task line '%s' is malformed", line));
+        }
+        FileChecksum checksum = "-".equals(fields[2]) ? null : FileChecksum.parse(fields[2]);
+        List<String> mirrors = "-".equals(fields[3]) ? Collections.emptyList() : Arrays.asList(fields[3].split(" "));
+        return new WorkItem(Long.parseLong(fields[0]), fields[1],
+                new ArrayList<>(Arrays.asList(fields).subList(4, fields.length)), checksum, mirrors);
+    }
+}
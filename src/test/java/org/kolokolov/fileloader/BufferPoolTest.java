@@ -0,0 +1,51 @@
+package org.kolokolov.fileloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kolokolov.fileloader.service.BufferPool;
+
+public class BufferPoolTest {
+
+    @Test
+    public void bufferSizeForTest() {
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.bufferSizeFor(1000));
+        Assert.assertEquals(16 * 1024, BufferPool.bufferSizeFor(1024 * 1024));
+        Assert.assertEquals(BufferPool.MAX_BUFFER_SIZE, BufferPool.bufferSizeFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void memoryBudgetTest() throws InterruptedException {
+        BufferPool bufferPool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+        byte[] first = bufferPool.acquire(512 * 1024);
+        byte[] second = bufferPool.acquire(512 * 1024);
+        Assert.assertEquals(BufferPool.MAX_BUFFER_SIZE, bufferPool.getAllocatedMemory());
+
+        bufferPool.release(second);
+        Assert.assertSame(second, bufferPool.acquire(512 * 1024));
+        bufferPool.release(second);
+
+        byte[] small = bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, small.length);
+        Assert.assertEquals(512 * 1024 + BufferPool.MIN_BUFFER_SIZE, bufferPool.getAllocatedMemory());
+
+    }
+
+    @Test
+    public void handOffTest() throws InterruptedException {
+        BufferPool bufferPool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+        try (BufferPool.StreamBuffer buffer = bufferPool.newStreamBuffer(Long.MAX_VALUE)) {
+            byte[] handedOff = null;
+            for (int i = 1; i < BufferPool.MAX_BUFFER_SIZE / buffer.array().length; i++) {
+                handedOff = buffer.handOff();
+                Assert.assertNotNull(handedOff);
+            }
+            byte[] kept = buffer.array();
+            Assert.assertNull(buffer.handOff());
+            Assert.assertSame(kept, buffer.array());
+
+            bufferPool.release(handedOff);
+            Assert.assertSame(kept, buffer.handOff());
+            Assert.assertSame(handedOff, buffer.array());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.kolokolov.fileloader;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kolokolov.fileloader.service.ConcurrencyController;
+import org.kolokolov.fileloader.service.DownloadMetrics;
+import org.kolokolov.fileloader.service.ThreadService;
+
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void additiveIncreaseMultiplicativeDecreaseTest() throws Exception {
+        ThreadService threadService = new ThreadService(2);
+        DownloadMetrics metrics = new DownloadMetrics();
+        ConcurrencyController controller = new ConcurrencyController(threadService, metrics, 1, 4);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        for (int i = 0; i < 6; i++) {
+            threadService.executeInNewThread(() -> {
+                started.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            });
+        }
+        DownloadMetrics.TaskMetrics taskMetrics = metrics.startTask(new URL("http://localhost/file"));
+        taskMetrics.addBytes(1024, 0);
+
+        Assert.assertEquals(3, controller.control());
+        Assert.assertTrue("a new thread is started for a waiting download", started.await(5, TimeUnit.SECONDS));
+
+        taskMetrics.complete(false);
+        Assert.assertEquals(2, controller.control());
+        Assert.assertEquals(2, threadService.getConcurrency());
+
+        release.countDown();
+        threadService.shutdownDownloadThreadPool();
+    }
+}
@@ -0,0 +1,185 @@
+package org.kolokolov.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kolokolov.fileloader.service.DownloadDaemon;
+import org.kolokolov.fileloader.service.DownloadService;
+import org.kolokolov.fileloader.service.HostConnections;
+import org.kolokolov.fileloader.service.HostScheduler;
+import org.kolokolov.fileloader.service.TaskFileParser;
+import org.kolokolov.fileloader.service.ThreadService;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class DownloadDaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private DownloadService downloadService;
+    private DownloadDaemon daemon;
+    private File outputFolder;
+
+    @Before
+    public void start() throws IOException {
+        content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+            exchange.close();
+        });
+        server.createContext("/file", exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        ThreadService threadService = new ThreadService(2);
+        downloadService = new DownloadService(threadService, 0);
+        HostScheduler hostScheduler = new HostScheduler(threadService, downloadService, new HostConnections(0));
+        outputFolder = folder.newFolder("output");
+        daemon = new DownloadDaemon(new TaskFileParser(), hostScheduler, outputFolder);
+    }
+
+    @After
+    public void stop() {
+        daemon.stop();
+        downloadService.closeDownloadThreads();
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return String.format("http://localhost:%d%s", server.getAddress().getPort(), path);
+    }
+
+    private DownloadDaemon.Job awaitJob(long id) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            DownloadDaemon.Job job = daemon.getJob(id);
+            if (job != null && job.getState() != DownloadDaemon.JobState.RUNNING) {
+                return job;
+            }
+            Thread.sleep(50);
+        }
+        Assert.fail("Job " + id + " has not been finished");
+        return null;
+    }
+
+    @Test
+    public void endpointTest() throws Exception {
+        int port = daemon.startEndpoint(0);
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/jobs")
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream body = connection.getOutputStream()) {
+            body.write(String.format("%s first%n%s second%n", url("/file"), url("/file"))
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(202, connection.getResponseCode());
+
+        DownloadDaemon.Job job = awaitJob(1);
+        Assert.assertEquals(DownloadDaemon.JobState.DONE, job.getState());
+        Assert.assertEquals(1, job.getCompleted());
+        Assert.assertArrayEquals(content, Files.readAllBytes(new File(outputFolder, "second").toPath()));
+
+        try (InputStream status = new URL("http://localhost:" + port + "/jobs/1").openStream()) {
+            String json = IOUtils.toString(status, StandardCharsets.UTF_8);
+            Assert.assertTrue(json, json.contains("\"state\": \"DONE\""));
+        }
+        HttpURLConnection missing = (HttpURLConnection) new URL("http://localhost:" + port + "/jobs/7")
+                .openConnection();
+        Assert.assertEquals(404, missing.getResponseCode());
+    }
+
+    private String rawRequest(int port, String headers) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(String.format("POST /jobs HTTP/1.1\r\n%sContent-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n", headers).getBytes(StandardCharsets.US_ASCII));
+            return IOUtils.toString(socket.getInputStream(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Test
+    public void foreignRequestTest() throws Exception {
+        int port = daemon.startEndpoint(0);
+        Assert.assertTrue(rawRequest(port, "Host: localhost:" + port + "\r\n").startsWith("HTTP/1.1 202"));
+        Assert.assertTrue(rawRequest(port, "Host: attacker.example:" + port + "\r\n").startsWith("HTTP/1.1 403"));
+        Assert.assertTrue(rawRequest(port, "Host: localhost:" + port + "\r\nOrigin: http://attacker.example\r\n")
+                .startsWith("HTTP/1.1 403"));
+        Assert.assertTrue(rawRequest(port, "Host: 127.0.0.1:" + port + "\r\nOrigin: http://localhost:" + port
+                + "\r\n").startsWith("HTTP/1.1 202"));
+    }
+
+    @Test
+    public void targetFilesTest() throws Exception {
+        DownloadDaemon.Job escaping = daemon.submit("test", Arrays.asList(url("/file") + " ../escaped"));
+        Assert.assertEquals(DownloadDaemon.JobState.FAILED, escaping.getState());
+        Assert.assertFalse(new File(folder.getRoot(), "escaped").exists());
+        DownloadDaemon.Job absolute = daemon.submit("test",
+                Arrays.asList(url("/file") + " " + new File(folder.getRoot(), "absolute").getAbsolutePath()));
+        Assert.assertEquals(DownloadDaemon.JobState.FAILED, absolute.getState());
+
+        DownloadDaemon.Job first = daemon.submit("test", Arrays.asList(url("/slow") + " shared"));
+        DownloadDaemon.Job second = daemon.submit("test", Arrays.asList(url("/file") + " shared"));
+        Assert.assertEquals(DownloadDaemon.JobState.FAILED, second.getState());
+        Assert.assertTrue(second.toJson(), second.toJson().contains("job " + first.getId()));
+        Assert.assertEquals(DownloadDaemon.JobState.DONE, awaitJob(first.getId()).getState());
+        DownloadDaemon.Job third = daemon.submit("test", Arrays.asList(url("/file") + " shared"));
+        Assert.assertEquals(DownloadDaemon.JobState.DONE, awaitJob(third.getId()).getState());
+    }
+
+    @Test
+    public void spoolFolderTest() throws Exception {
+        File spool = folder.newFolder("spool");
+        daemon.watchSpoolFolder(spool);
+        File hidden = new File(spool, ".tasks");
+        Files.write(hidden.toPath(), Arrays.asList(url("/file") + " spooled", url("/missing") + " missing"));
+        Files.move(hidden.toPath(), new File(spool, "tasks").toPath());
+
+        DownloadDaemon.Job job = awaitJob(1);
+        Assert.assertEquals(DownloadDaemon.JobState.FAILED, job.getState());
+        Assert.assertEquals(1, job.getCompleted());
+        Assert.assertEquals(1, job.getFailed());
+        Assert.assertArrayEquals(content, Files.readAllBytes(new File(outputFolder, "spooled").toPath()));
+        Assert.assertTrue(new File(spool, "jobs/1-tasks").exists());
+        File status = new File(spool, "jobs/1.status");
+        for (int i = 0; i < 100 && !status.exists(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(status.exists());
+    }
+}
@@ -0,0 +1,493 @@
+package org.kolokolov.fileloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kolokolov.fileloader.service.ContentCache;
+import org.kolokolov.fileloader.service.BufferPool;
+import org.kolokolov.fileloader.service.DownloadJournal;
+import org.kolokolov.fileloader.service.DownloadMetrics;
+import org.kolokolov.fileloader.service.DownloadService;
+import org.kolokolov.fileloader.service.FileChecksum;
+import org.kolokolov.fileloader.service.FileLinker;
+import org.kolokolov.fileloader.service.FsyncPolicy;
+import org.kolokolov.fileloader.service.HostConnections;
+import org.kolokolov.fileloader.service.HostScheduler;
+import org.kolokolov.fileloader.service.Mirrors;
+import org.kolokolov.fileloader.service.RemoteResource;
+import org.kolokolov.fileloader.service.SourceConnections;
+import org.kolokolov.fileloader.service.ThreadService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class DownloadServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private byte[] gzippedContent;
+    private List<String> ranges = new ArrayList<>();
+    private AtomicInteger runningRequests = new AtomicInteger();
+    private AtomicInteger maxRunningRequests = new AtomicInteger();
+    private AtomicInteger headRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        content = new byte[100_000];
+        new Random(42).nextBytes(content);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            gzip.write(content);
+        }
+        gzippedContent = gzipped.toByteArray();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ranged", exchange -> serve(exchange, true));
+        server.createContext("/plain", exchange -> serve(exchange, false));
+        server.createContext("/slow", exchange -> {
+            int running = runningRequests.incrementAndGet();
+            maxRunningRequests.accumulateAndGet(running, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                runningRequests.decrementAndGet();
+            }
+            serve(exchange, false);
+        });
+        server.createContext("/gzip", exchange -> {
+            if (exchange.getRequestHeaders().getFirst("Accept-Encoding") == null) {
+                serve(exchange, false);
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, gzippedContent.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(gzippedContent);
+            }
+            exchange.close();
+        });
+        server.createContext("/chunked", exchange -> {
+            exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ? -1 : 0);
+            if (!"HEAD".equals(exchange.getRequestMethod())) {
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private synchronized void recordRangeRequest(String range) {
+        ranges.add(range);
+    }
+
+    private void serve(HttpExchange exchange, boolean acceptsRanges) throws IOException {
+        int first = 0;
+        int last = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (acceptsRanges) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+        if (acceptsRanges && range != null) {
+            recordRangeRequest(range);
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            first = Integer.parseInt(bounds[0]);
+            if (bounds.length > 1) {
+                last = Integer.parseInt(bounds[1]);
+            }
+            exchange.getResponseHeaders().add("Content-Range",
+                    String.format("bytes %d-%d/%d", first, last, content.length));
+        }
+        int status = acceptsRanges && range != null ? 206 : 200;
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, last - first + 1);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content, first, last - first + 1);
+            }
+        }
+        exchange.close();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http", "localhost", server.getAddress().getPort(), path);
+    }
+
+    @Test
+    public void segmentedDownloadTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        File first = folder.newFile("first");
+        File second = new File(folder.getRoot(), "second");
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Arrays.asList(first, second)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+        Assert.assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        Assert.assertEquals(4, ranges.size());
+        Assert.assertFalse(DownloadJournal.journalFileOf(url("/ranged"), folder.getRoot()).exists());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void copiedFileTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 1,
+                new FileLinker(FileLinker.LinkMode.COPY));
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second");
+        Assert.assertTrue(downloadService.downloadFiles(url("/plain"), Arrays.asList(second, first)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+        Assert.assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        Assert.assertFalse(Files.isSameFile(first.toPath(), second.toPath()));
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void singleStreamFallbackTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        downloadService.setFsyncPolicy(FsyncPolicy.every(16 * 1024));
+        File file = folder.newFile("file");
+        Assert.assertTrue(downloadService.downloadFiles(url("/plain"), Collections.singletonList(file)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertFalse(DownloadService.partFileOf(file).exists());
+        Assert.assertTrue(ranges.isEmpty());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void preallocationTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        downloadService.setPreallocation(true);
+        File segmented = new File(folder.getRoot(), "segmented");
+        File streamed = new File(folder.getRoot(), "streamed");
+        Files.write(segmented.toPath(), new byte[content.length * 2]);
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Collections.singletonList(segmented)));
+        Assert.assertTrue(downloadService.downloadFiles(url("/plain"), Collections.singletonList(streamed)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(segmented.toPath()));
+        Assert.assertArrayEquals(content, Files.readAllBytes(streamed.toPath()));
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void resumedDownloadTest() throws IOException {
+        URL url = url("/ranged");
+        File file = new File(folder.getRoot(), "file");
+        byte[] partial = Arrays.copyOf(content, content.length);
+        Arrays.fill(partial, 20_000, content.length, (byte) 0);
+        Files.write(DownloadService.partFileOf(file).toPath(), partial);
+
+        RemoteResource resource = new RemoteResource(content.length, true, "\"v1\"", null);
+        DownloadJournal journal = DownloadJournal.create(DownloadJournal.journalFileOf(url, folder.getRoot()), url,
+                resource, 2);
+        journal.commit(journal.getSegments().get(0), 20_000);
+
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 2);
+        Assert.assertTrue(downloadService.downloadFiles(url, Collections.singletonList(file)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertTrue(ranges.contains("bytes=20000-49999"));
+        Assert.assertTrue(ranges.contains("bytes=50000-99999"));
+        Assert.assertFalse(DownloadService.partFileOf(file).exists());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void hostConnectionsTest() throws Exception {
+        ThreadService threadService = new ThreadService(5);
+        DownloadService downloadService = new DownloadService(threadService, 0);
+        HostConnections hostConnections = new HostConnections(2);
+        downloadService.setHostConnections(hostConnections);
+        HostScheduler hostScheduler = new HostScheduler(threadService, downloadService, hostConnections);
+
+        List<Future<Boolean>> reports = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            File file = new File(folder.getRoot(), "file" + i);
+            reports.add(hostScheduler.schedule(url("/slow"), Collections.singletonList(file)));
+        }
+        for (Future<Boolean> report : reports) {
+            Assert.assertTrue(report.get());
+        }
+        Assert.assertEquals(2, maxRunningRequests.get());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void scheduleFirstTest() throws Exception {
+        ThreadService threadService = new ThreadService(3);
+        DownloadService downloadService = new DownloadService(threadService, 0);
+        HostConnections hostConnections = new HostConnections(1);
+        downloadService.setHostConnections(hostConnections);
+        HostScheduler hostScheduler = new HostScheduler(threadService, downloadService, hostConnections);
+
+        Future<Boolean> started = hostScheduler.schedule(url("/slow"),
+                Collections.singletonList(new File(folder.getRoot(), "started")));
+        Future<Boolean> queued = hostScheduler.schedule(url("/slow"),
+                Collections.singletonList(new File(folder.getRoot(), "queued")));
+        Future<Boolean> retried = hostScheduler.scheduleFirst(url("/slow"),
+                Collections.singletonList(new File(folder.getRoot(), "retried")), null, Collections.emptyList());
+        Assert.assertTrue(retried.get());
+        Assert.assertTrue(started.isDone());
+        Assert.assertFalse(queued.isDone());
+        Assert.assertTrue(queued.get());
+
+        hostScheduler.schedule(url("/slow"), Collections.singletonList(new File(folder.getRoot(), "running")));
+        Future<Boolean> pending = hostScheduler.schedule(url("/slow"),
+                Collections.singletonList(new File(folder.getRoot(), "pending")));
+        Assert.assertTrue(hostScheduler.cancelPending() >= 1);
+        Assert.assertTrue(pending.isCancelled());
+        Assert.assertFalse(new File(folder.getRoot(), "pending").exists());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void metricsTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        DownloadMetrics metrics = downloadService.getMetrics();
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"),
+                Collections.singletonList(new File(folder.getRoot(), "file"))));
+        Assert.assertFalse(downloadService.downloadFiles(url("/missing"),
+                Collections.singletonList(new File(folder.getRoot(), "missing"))));
+        Assert.assertEquals(content.length, metrics.getDownloadedBytes());
+        Assert.assertEquals(1, metrics.getCompletedDownloads());
+        Assert.assertEquals(1, metrics.getFailedDownloads());
+        Assert.assertEquals(0, metrics.getActiveDownloads());
+        Assert.assertEquals(0, metrics.getActiveConnections());
+
+        File summary = folder.newFile("summary.json");
+        metrics.writeSummary(summary);
+        String json = new String(Files.readAllBytes(summary.toPath()), "UTF-8");
+        Assert.assertTrue(json.contains("\"downloadedBytes\": " + content.length));
+        Assert.assertTrue(json.contains(url("/ranged").toString()));
+        Assert.assertTrue(json.contains("\"sampledTasks\": 2"));
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void contentCacheTest() throws IOException {
+        File cacheFolder = folder.newFolder("cache");
+        FileLinker fileLinker = new FileLinker(FileLinker.LinkMode.AUTO);
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 1, fileLinker);
+        downloadService.setContentCache(new ContentCache(cacheFolder, 150_000, fileLinker));
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second");
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged/a"), Collections.singletonList(first)));
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged/b"), Collections.singletonList(second)));
+        downloadService.closeDownloadThreads();
+
+        first.delete();
+        second.delete();
+        downloadService = new DownloadService(new ThreadService(1), 0, 1, fileLinker);
+        ContentCache contentCache = new ContentCache(cacheFolder, 150_000, fileLinker);
+        Assert.assertNull(contentCache.get(url("/ranged/a")));
+        Assert.assertNotNull(contentCache.get(url("/ranged/b")));
+        downloadService.setContentCache(contentCache);
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged/b"), Collections.singletonList(second)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        Assert.assertEquals(1, downloadService.getMetrics().getCacheHits());
+        Assert.assertEquals(0, downloadService.getMetrics().getDownloadedBytes());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void staleCacheTest() throws IOException {
+        FileLinker fileLinker = new FileLinker(FileLinker.LinkMode.AUTO);
+        ContentCache contentCache = new ContentCache(folder.newFolder("cache"), 150_000, fileLinker);
+        File stale = folder.newFile("stale");
+        contentCache.put(url("/ranged"), new RemoteResource(1, true, "\"v0\"", null), stale);
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 1, fileLinker);
+        downloadService.setContentCache(contentCache);
+        File file = new File(folder.getRoot(), "file");
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Collections.singletonList(file)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertEquals(1, headRequests.get());
+        Assert.assertEquals("\"v1\"", contentCache.get(url("/ranged")).getETag());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void mirrorCacheTest() throws IOException {
+        FileLinker fileLinker = new FileLinker(FileLinker.LinkMode.AUTO);
+        ContentCache contentCache = new ContentCache(folder.newFolder("cache"), 150_000, fileLinker);
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 1, fileLinker);
+        downloadService.setContentCache(contentCache);
+        List<URL> mirrors = Collections.singletonList(url("/ranged"));
+        Assert.assertTrue(downloadService.downloadFiles(url("/missing"),
+                Collections.singletonList(new File(folder.getRoot(), "dropped")), null, mirrors));
+        Assert.assertTrue(downloadService.downloadFiles(url("/plain"),
+                Collections.singletonList(new File(folder.getRoot(), "plain")), null, mirrors));
+        Assert.assertNull(contentCache.get(url("/missing")));
+        Assert.assertNull(contentCache.get(url("/plain")));
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void checksumTest() throws Exception {
+        StringBuilder sha256 = new StringBuilder("sha256:");
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            sha256.append(String.format("%02x", b));
+        }
+        FileChecksum checksum = FileChecksum.parse(sha256.toString());
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        File file = new File(folder.getRoot(), "file");
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Collections.singletonList(file), checksum));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertTrue(ranges.isEmpty());
+
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Collections.singletonList(file), checksum));
+        Assert.assertEquals(content.length, downloadService.getMetrics().getDownloadedBytes());
+
+        FileChecksum wrongChecksum = FileChecksum.parse("crc32c:00000000");
+        Assert.assertFalse(downloadService.downloadFiles(url("/plain"), Collections.singletonList(file),
+                wrongChecksum));
+        Assert.assertEquals(4 * content.length, downloadService.getMetrics().getDownloadedBytes());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void mirrorsTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        File file = new File(folder.getRoot(), "mirrored");
+        Assert.assertTrue(downloadService.downloadFiles(url("/missing"), Collections.singletonList(file), null,
+                Collections.singletonList(url("/ranged"))));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertEquals(4, ranges.size());
+        Assert.assertFalse(DownloadJournal.journalFileOf(url("/missing"), folder.getRoot()).exists());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void mirrorWithoutRangesTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4);
+        File file = new File(folder.getRoot(), "mirrored");
+        Assert.assertTrue(downloadService.downloadFiles(url("/plain"), Collections.singletonList(file), null,
+                Collections.singletonList(url("/ranged"))));
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertEquals(4, ranges.size());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void sourceConnectionsTest() throws Exception {
+        URL mirror = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/ranged");
+        Mirrors sources = Mirrors.probe(Arrays.asList(url("/ranged"), mirror), new ThreadService(1));
+        int mirrorIndex = sources.getSource(0).getHost().equals(mirror.getHost()) ? 0 : 1;
+        HostConnections hostConnections = new HostConnections(1);
+        Assert.assertEquals(1, hostConnections.tryAcquire("localhost", 1)); // the task connection
+        SourceConnections connections = new SourceConnections(hostConnections, url("/ranged"));
+
+        SourceConnections.Connection first = connections.acquire(sources, mirrorIndex);
+        Assert.assertEquals(mirrorIndex, first.getSource());
+        Assert.assertEquals(0, hostConnections.tryAcquire("127.0.0.1", 1));
+        SourceConnections.Connection second = connections.acquire(sources, mirrorIndex);
+        Assert.assertEquals(1 - mirrorIndex, second.getSource());
+        Assert.assertNull(connections.acquire(sources, mirrorIndex));
+
+        connections.release(first);
+        Assert.assertEquals(1, hostConnections.tryAcquire("127.0.0.1", 1));
+        Assert.assertSame(second, connections.switchTo(sources, second, mirrorIndex));
+        connections.release(second);
+        Mirrors mirrorOnly = Mirrors.of(mirror, sources.getResource());
+        Assert.assertNotNull(connections.acquire(mirrorOnly, 0)); // the task connection stands in
+        Assert.assertNull(connections.acquire(mirrorOnly, 0));
+    }
+
+    @Test
+    public void compressionTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 1);
+        downloadService.setCompression(DownloadService.Compression.DECODE);
+        File decoded = new File(folder.getRoot(), "decoded");
+        Assert.assertTrue(downloadService.downloadFiles(url("/gzip"), Collections.singletonList(decoded)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(decoded.toPath()));
+        Assert.assertEquals(gzippedContent.length, downloadService.getMetrics().getDownloadedBytes());
+
+        downloadService.setCompression(DownloadService.Compression.KEEP);
+        File kept = new File(folder.getRoot(), "kept");
+        Assert.assertTrue(downloadService.downloadFiles(url("/gzip"), Collections.singletonList(kept)));
+        Assert.assertArrayEquals(gzippedContent, Files.readAllBytes(kept.toPath()));
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void smallFileTest() throws IOException {
+        DownloadService downloadService = new DownloadService(new ThreadService(1), 0, 4,
+                new FileLinker(FileLinker.LinkMode.COPY));
+        downloadService.setSmallFileSize(2 * content.length);
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second");
+        Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Arrays.asList(second, first)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+        Assert.assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        Assert.assertFalse(DownloadService.partFileOf(first).exists());
+        Assert.assertTrue(ranges.isEmpty());
+
+        File chunked = new File(folder.getRoot(), "chunked");
+        Assert.assertTrue(downloadService.downloadFiles(url("/chunked"), Collections.singletonList(chunked)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(chunked.toPath()));
+
+        downloadService.setSmallFileSize(content.length / 10);
+        File spilled = new File(folder.getRoot(), "spilled");
+        Assert.assertTrue(downloadService.downloadFiles(url("/chunked"), Collections.singletonList(spilled)));
+        Assert.assertArrayEquals(content, Files.readAllBytes(spilled.toPath()));
+        Assert.assertFalse(DownloadService.partFileOf(spilled).exists());
+        Assert.assertEquals(3 * content.length, downloadService.getMetrics().getDownloadedBytes());
+        downloadService.closeDownloadThreads();
+    }
+
+    @Test
+    public void writeThreadsTest() throws IOException {
+        for (int writeThreads : new int[] { 0, 1 }) {
+            ThreadService threadService = new ThreadService(1);
+            threadService.setWriteThreads(writeThreads);
+            DownloadService downloadService = new DownloadService(threadService, 0, 4);
+            BufferPool bufferPool = new BufferPool(BufferPool.MIN_BUFFER_SIZE);
+            downloadService.setBufferPool(bufferPool);
+            downloadService.setSmallFileSize(0);
+            File segmented = new File(folder.getRoot(), "segmented" + writeThreads);
+            File single = new File(folder.getRoot(), "single" + writeThreads);
+            Assert.assertTrue(downloadService.downloadFiles(url("/ranged"), Collections.singletonList(segmented)));
+            Assert.assertTrue(downloadService.downloadFiles(url("/plain"), Collections.singletonList(single)));
+            Assert.assertArrayEquals(content, Files.readAllBytes(segmented.toPath()));
+            Assert.assertArrayEquals(content, Files.readAllBytes(single.toPath()));
+            Assert.assertTrue(bufferPool.getAllocatedMemory() <= bufferPool.getMemoryBudget());
+            downloadService.closeDownloadThreads();
+        }
+    }
+}
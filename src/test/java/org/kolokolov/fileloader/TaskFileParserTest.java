@@ -1,17 +1,27 @@
 package org.kolokolov.fileloader;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kolokolov.fileloader.service.FileChecksum;
 import org.kolokolov.fileloader.service.TaskFileParser;
 import org.kolokolov.fileloader.service.TaskFileParser.TaskDescription;
 
 public class TaskFileParserTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
     
     private List<String> lines;
     private Set<TaskDescription> tasks;
@@ -44,4 +54,52 @@ public class TaskFileParserTest {
     public void targetFileHasDuplicatesTest() {
         Assert.assertTrue(parser.targetFileHasDuplicates(tasks));
     }
+
+    @Test
+    public void streamTaskFileTest() throws IOException {
+        File taskFile = folder.newFile("tasks.txt");
+        lines.add("first_link file1");
+        Files.write(taskFile.toPath(), lines);
+        List<TaskDescription> streamedTasks = new ArrayList<>();
+        parser.streamTaskFile(taskFile, streamedTasks::add);
+        Assert.assertEquals(3, streamedTasks.size());
+        Assert.assertFalse(streamedTasks.contains(new TaskDescription("third_link", "file3")));
+        Assert.assertTrue(tasks.containsAll(streamedTasks));
+    }
+
+    @Test
+    public void checksumColumnTest() {
+        TaskDescription task = parser.splitLine("first_link file1 crc32c:E3069283");
+        Assert.assertEquals(new TaskDescription("first_link", "file1"), task);
+        Assert.assertEquals(FileChecksum.Algorithm.CRC32C, task.getChecksum().getAlgorithm());
+        Assert.assertEquals("e3069283", task.getChecksum().getValue());
+        Assert.assertNull(parser.splitLine("first_link file1 md5:e3069283"));
+        Assert.assertNull(parser.splitLine("first_link file1 sha256:e3069283"));
+    }
+
+    @Test
+    public void sizeHintTest() {
+        TaskDescription task = parser.splitLine("first_link file1 size:1048576 crc32c:e3069283");
+        Assert.assertEquals(1048576, task.getSize());
+        Assert.assertEquals("e3069283", task.getChecksum().getValue());
+        Assert.assertEquals(-1, parser.splitLine("first_link file1").getSize());
+        Assert.assertNull(parser.splitLine("first_link file1 size:large"));
+    }
+
+    @Test
+    public void mirrorsTest() {
+        TaskDescription task = parser.splitLine("first_link file1 mirror:second_link size:10 mirror:third_link");
+        Assert.assertEquals(Arrays.asList("second_link", "third_link"), task.getMirrors());
+        Assert.assertEquals(10, task.getSize());
+        Assert.assertTrue(parser.splitLine("first_link file1").getMirrors().isEmpty());
+    }
+
+    @Test
+    public void splitLineSpacesTest() {
+        TaskDescription task = parser.splitLine("  first_link   file1  size:10 ");
+        Assert.assertEquals(new TaskDescription("first_link", "file1"), task);
+        Assert.assertEquals(10, task.getSize());
+        Assert.assertNull(parser.splitLine("   "));
+        Assert.assertNull(parser.splitLine("first_link "));
+    }
 }
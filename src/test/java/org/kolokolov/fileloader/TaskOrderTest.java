@@ -0,0 +1,24 @@
+package org.kolokolov.fileloader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kolokolov.fileloader.service.TaskOrder;
+
+public class TaskOrderTest {
+
+    private final List<Long> sizes = Arrays.asList(10L, -1L, 1000L, 100L);
+
+    @Test
+    public void largestFirstTest() {
+        Assert.assertEquals(Arrays.asList(-1L, 1000L, 100L, 10L), TaskOrder.LPT.sort(sizes, Long::longValue));
+    }
+
+    @Test
+    public void smallestFirstTest() {
+        Assert.assertEquals(Arrays.asList(10L, 100L, 1000L, -1L), TaskOrder.SPT.sort(sizes, Long::longValue));
+        Assert.assertEquals(sizes, TaskOrder.of("none").sort(sizes, Long::longValue));
+    }
+}
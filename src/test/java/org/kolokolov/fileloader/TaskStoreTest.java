@@ -0,0 +1,100 @@
+package org.kolokolov.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kolokolov.fileloader.service.FileChecksum;
+import org.kolokolov.fileloader.service.TaskFileParser;
+import org.kolokolov.fileloader.service.TaskStore;
+
+public class TaskStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergeTest() {
+        TaskStore store = new TaskStore();
+        FileChecksum checksum = FileChecksum.parse("crc32c:e3069283");
+        Assert.assertTrue(store.add("first_link", "file1", null, -1, Collections.emptyList()));
+        Assert.assertTrue(store.add("second_link", "file2", null, 10, Collections.emptyList()));
+        Assert.assertTrue(store.add("first_link", "file3", checksum, 20, Collections.singletonList("mirror")));
+        Assert.assertTrue(store.add("first_link", "file1", null, -1, Collections.emptyList()));
+        Assert.assertFalse(store.add("third_link", "file3", null, -1, Collections.emptyList()));
+
+        Assert.assertEquals(2, store.getTaskCount());
+        Assert.assertEquals(1, store.getConflicts());
+        Assert.assertEquals("first_link", store.getUrl(0));
+        Assert.assertEquals(Arrays.asList("file1", "file3"), store.getFiles(0));
+        Assert.assertEquals(checksum.toString(), store.getChecksum(0).toString());
+        Assert.assertEquals(20, store.getSize(0));
+        Assert.assertEquals(Collections.singletonList("mirror"), store.getMirrors(0));
+        Assert.assertEquals(Collections.singletonList("file2"), store.getFiles(1));
+        Assert.assertNull(store.getChecksum(1));
+    }
+
+    @Test
+    public void growthTest() {
+        TaskStore store = new TaskStore();
+        for (int i = 0; i < 100_000; i++) {
+            store.add("http://host/resource-" + i / 2, "файл-" + i, null, -1, Collections.emptyList());
+        }
+        Assert.assertEquals(50_000, store.getTaskCount());
+        Assert.assertEquals("http://host/resource-49999", store.getUrl(49_999));
+        Assert.assertEquals(Arrays.asList("файл-99998", "файл-99999"), store.getFiles(49_999));
+    }
+
+    @Test
+    public void parseTaskStoreTest() throws IOException, ParseException {
+        File taskFile = folder.newFile("tasks.txt");
+        Files.write(taskFile.toPath(), Arrays.asList("first_link file1 size:100", "bad_line", "first_link file2"));
+        TaskStore store = new TaskFileParser().parseTaskStore(taskFile);
+        Assert.assertEquals(1, store.getTaskCount());
+        Assert.assertEquals(Arrays.asList("file1", "file2"), store.getFiles(0));
+        Assert.assertEquals(100, store.getSize(0));
+
+        Files.write(taskFile.toPath(), Arrays.asList("first_link file1", "second_link file1"));
+        try {
+            new TaskFileParser().parseTaskStore(taskFile);
+            Assert.fail("Duplicate target file has not been detected");
+        } catch (ParseException pe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void chunkedParseTest() throws IOException, ParseException {
+        File taskFile = folder.newFile("tasks.txt");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append(String.format("http://host/resource-%d  file-%d.bin size:%d", i / 2, i, i));
+            content.append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 100 == 0) {
+                content.append("\nbroken_line\n");
+            }
+        }
+        content.append("http://host/last last.bin");
+        Files.write(taskFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        TaskFileParser parser = new TaskFileParser();
+        parser.setChunkSize(100);
+        TaskStore store = parser.parseTaskStore(taskFile);
+
+        Assert.assertEquals(501, store.getTaskCount());
+        for (int task = 0; task < 500; task++) {
+            Assert.assertEquals("http://host/resource-" + task, store.getUrl(task));
+            Assert.assertEquals(Arrays.asList("file-" + task * 2 + ".bin", "file-" + (task * 2 + 1) + ".bin"),
+                    store.getFiles(task));
+            Assert.assertEquals(task * 2 + 1, store.getSize(task));
+        }
+        Assert.assertEquals(Collections.singletonList("last.bin"), store.getFiles(500));
+    }
+}
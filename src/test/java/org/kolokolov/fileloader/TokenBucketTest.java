@@ -0,0 +1,88 @@
+package org.kolokolov.fileloader;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kolokolov.fileloader.service.SpeedLimiter;
+import org.kolokolov.fileloader.service.SpeedLimits;
+import org.kolokolov.fileloader.service.TokenBucket;
+
+public class TokenBucketTest {
+
+    @Test
+    public void reserveTest() {
+        TokenBucket tokenBucket = new TokenBucket(8 * 1000);
+        Assert.assertEquals(1000, tokenBucket.getSpeedLimit());
+        Assert.assertEquals(0, tokenBucket.reserve(50));
+        long waitTime = tokenBucket.reserve(1000);
+        Assert.assertTrue(waitTime > TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertTrue(waitTime <= TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void contendedSpeedLimitTest() throws InterruptedException {
+        int speedLimit = 8 * 1024 * 1024; // 1 MB/s
+        TokenBucket tokenBucket = new TokenBucket(speedLimit);
+        AtomicLong transferred = new AtomicLong();
+        long duration = TimeUnit.MILLISECONDS.toNanos(1000);
+        long startTime = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() - startTime < duration) {
+                        tokenBucket.emptyBucket(1024);
+                        transferred.addAndGet(1024);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        double speed = transferred.get() / seconds;
+        Assert.assertTrue("Speed " + speed + " exceeds the limit", speed < tokenBucket.getSpeedLimit() * 1.15);
+        Assert.assertTrue("Speed " + speed + " is far below the limit", speed > tokenBucket.getSpeedLimit() * 0.75);
+    }
+
+    @Test
+    public void speedLimitsTest() throws Exception {
+        Map<String, Long> hostSpeedLimits = new HashMap<>();
+        hostSpeedLimits.put("slow.example.com", 8L * 100);
+        SpeedLimits speedLimits = new SpeedLimits(8 * 10_000, 8 * 1000, hostSpeedLimits, 8 * 5000);
+        SpeedLimiter slowHostLimiter = speedLimits.limiterFor(new URL("http://slow.example.com/file"));
+        SpeedLimiter otherHostLimiter = speedLimits.limiterFor(new URL("http://other.example.com/file"));
+        Assert.assertEquals(100, slowHostLimiter.getSpeedLimit());
+        Assert.assertEquals(1000, otherHostLimiter.getSpeedLimit());
+        Assert.assertFalse(new SpeedLimits(0).limiterFor(new URL("http://example.com/file")).isLimited());
+        Assert.assertEquals(3L * 1024 * 1024 * 1024 / 8, new SpeedLimits(3L * 1024 * 1024 * 1024)
+                .limiterFor(new URL("http://example.com/file")).getSpeedLimit());
+    }
+
+    @Test
+    public void sourceSpeedLimitsTest() throws Exception {
+        Map<String, Long> hostSpeedLimits = new HashMap<>();
+        hostSpeedLimits.put("slow.example.com", 8L * 100);
+        SpeedLimits speedLimits = new SpeedLimits(0, 0, hostSpeedLimits, 8 * 5000);
+        TokenBucket taskBucket = speedLimits.newTaskBucket();
+        Assert.assertEquals(100, speedLimits.limiterFor(new URL("http://slow.example.com/file"), taskBucket)
+                .getSpeedLimit());
+        Assert.assertEquals(5000, speedLimits.limiterFor(new URL("http://mirror.example.com/file"), taskBucket)
+                .getSpeedLimit());
+        Assert.assertNull(new SpeedLimits(0).newTaskBucket());
+    }
+}
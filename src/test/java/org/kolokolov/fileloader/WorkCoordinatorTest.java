@@ -0,0 +1,156 @@
+package org.kolokolov.fileloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kolokolov.fileloader.service.CoordinatorClient;
+import org.kolokolov.fileloader.service.DownloadService;
+import org.kolokolov.fileloader.service.DownloadWorker;
+import org.kolokolov.fileloader.service.FileLinker;
+import org.kolokolov.fileloader.service.HostConnections;
+import org.kolokolov.fileloader.service.HostScheduler;
+import org.kolokolov.fileloader.service.RemoteTokenBucket;
+import org.kolokolov.fileloader.service.SpeedLimits;
+import org.kolokolov.fileloader.service.ThreadService;
+import org.kolokolov.fileloader.service.WorkCoordinator;
+import org.kolokolov.fileloader.service.WorkItem;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class WorkCoordinatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+
+    @Before
+    public void startServer() throws IOException {
+        content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return String.format("http://localhost:%d%s", server.getAddress().getPort(), path);
+    }
+
+    private CompletableFuture<DownloadWorker> startWorker(int port, File outputFolder) throws IOException {
+        CoordinatorClient client = CoordinatorClient.connect("localhost", port);
+        ThreadService threadService = new ThreadService(2);
+        SpeedLimits speedLimits = new SpeedLimits(new RemoteTokenBucket(client), 0, Collections.emptyMap(), 0);
+        DownloadService downloadService = new DownloadService(threadService, speedLimits, 1,
+                new FileLinker(FileLinker.LinkMode.COPY));
+        HostScheduler hostScheduler = new HostScheduler(threadService, downloadService, new HostConnections(0));
+        DownloadWorker worker = new DownloadWorker(client, hostScheduler, outputFolder, 2);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                worker.run();
+                client.close();
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                downloadService.closeDownloadThreads();
+            }
+            return worker;
+        });
+    }
+
+    @Test
+    public void workItemTest() {
+        WorkItem item = WorkItem.decode(new WorkItem(7, "http://host/a", Arrays.asList("a", "dir/b"), null,
+                Collections.singletonList("http://mirror/a")).encode());
+        Assert.assertEquals(7, item.getId());
+        Assert.assertEquals("http://host/a", item.getUrl());
+        Assert.assertEquals(Arrays.asList("a", "dir/b"), item.getFiles());
+        Assert.assertNull(item.getChecksum());
+        Assert.assertEquals(Collections.singletonList("http://mirror/a"), item.getMirrors());
+    }
+
+    @Test
+    public void redistributionTest() throws Exception {
+        List<WorkItem> items = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            items.add(new WorkItem(i, url("/file" + i), Arrays.asList("file" + i, "copy" + i), null,
+                    Collections.emptyList()));
+        }
+        WorkCoordinator coordinator = new WorkCoordinator(items, 100 * 1024 * 1024);
+        coordinator.setLeaseTime(1000);
+        int port = coordinator.start(0);
+
+        try (Socket failingWorker = new Socket("localhost", port);
+                PrintWriter output = new PrintWriter(failingWorker.getOutputStream(), true, StandardCharsets.UTF_8);
+                BufferedReader input = new BufferedReader(
+                        new InputStreamReader(failingWorker.getInputStream(), StandardCharsets.UTF_8))) {
+            output.println("HELLO");
+            Assert.assertTrue(input.readLine().startsWith("WELCOME"));
+            output.println("NEXT");
+            Assert.assertTrue(input.readLine().startsWith("TASK\t0\t"));
+        }
+
+        File firstFolder = folder.newFolder("first");
+        File secondFolder = folder.newFolder("second");
+        CompletableFuture<DownloadWorker> first = startWorker(port, firstFolder);
+        CompletableFuture<DownloadWorker> second = startWorker(port, secondFolder);
+        coordinator.awaitCompletion();
+        coordinator.stop();
+
+        Assert.assertEquals(6, coordinator.getCompleted());
+        Assert.assertEquals(0, coordinator.getFailed());
+        Assert.assertEquals(6 * content.length, coordinator.getDownloadedSize());
+        Assert.assertEquals(6, first.get().getCompleted() + second.get().getCompleted());
+        for (int i = 0; i < 6; i++) {
+            File target = new File(firstFolder, "file" + i).exists() ? firstFolder : secondFolder;
+            Assert.assertArrayEquals(content, Files.readAllBytes(new File(target, "file" + i).toPath()));
+            Assert.assertArrayEquals(content, Files.readAllBytes(new File(target, "copy" + i).toPath()));
+        }
+    }
+
+    @Test
+    public void lostCoordinatorTest() throws Exception {
+        WorkCoordinator coordinator = new WorkCoordinator(Collections.emptyList(), 8 * 1024 * 1024);
+        int port = coordinator.start(0);
+        CoordinatorClient client = CoordinatorClient.connect("localhost", port);
+        RemoteTokenBucket bucket = new RemoteTokenBucket(client);
+        client.close();
+        coordinator.stop();
+
+        Assert.assertEquals(0, bucket.reserve(1024));
+        long waitTime = bucket.reserve(1024 * 1024);
+        Assert.assertTrue(waitTime > 0 && waitTime < 1_000_000_000L);
+    }
+}